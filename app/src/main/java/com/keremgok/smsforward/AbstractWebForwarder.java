@@ -3,16 +3,24 @@ package com.keremgok.smsforward;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public abstract class AbstractWebForwarder implements Forwarder {
     private final String TAG = getClass().getSimpleName();
     protected final URL endpoint;
+    private final HttpTransport transport;
 
     public AbstractWebForwarder(String endpoint) {
+        this(endpoint, UrlConnectionTransport.getInstance());
+    }
+
+    public AbstractWebForwarder(String endpoint, HttpTransport transport) {
         try {
             this.endpoint = new URL(endpoint);
             String protocol = this.endpoint.getProtocol();
@@ -22,6 +30,7 @@ public abstract class AbstractWebForwarder implements Forwarder {
         } catch (MalformedURLException e) {
             throw new IllegalArgumentException("Malformed endpoint URL", e);
         }
+        this.transport = transport;
     }
 
     @Override
@@ -31,29 +40,69 @@ public abstract class AbstractWebForwarder implements Forwarder {
 
     @Override
     public void forward(String fromNumber, String content, long timestamp) throws Exception {
-        byte[] body = makeBody(fromNumber, content);
+        byte[] body = makeBody(fromNumber, content, timestamp);
+        HttpTransport.Response response = post(body);
+        Log.d(TAG, String.format("response: status=%d", response.statusCode));
+        checkStatus(response);
+    }
 
-        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
-        try {
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.setDoOutput(true);
-            connection.setDoInput(false);
-            connection.setRequestProperty("Content-Type", getContentType());
-
-            try (OutputStream out = connection.getOutputStream()) {
-                out.write(body);
-                out.flush();
-            }
+    /**
+     * Classify a response: 2xx is success, 408, 425, 429 and most 5xx are worth
+     * retrying after the delay the server asks for, anything else is permanent
+     *
+     * @throws HttpStatusException if the request was not accepted
+     */
+    protected void checkStatus(HttpTransport.Response response) throws HttpStatusException {
+        int status = response.statusCode;
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        long retryAfterMs = HttpStatusException.isRetryableStatus(status) ? getRetryAfterMs(response) : -1;
+        String message = "HTTP " + status;
+        if (retryAfterMs >= 0) {
+            message += ", retry after " + retryAfterMs + " ms";
+        }
+        Log.w(TAG, "Request rejected: " + message);
+        throw new HttpStatusException(status, retryAfterMs, message);
+    }
 
-            int status = connection.getResponseCode();
-            Log.d(TAG, String.format("response: status=%d", status));
-        } finally {
-            connection.disconnect();
+    /**
+     * Get the delay the server asked for before retrying, from the Retry-After
+     * header in seconds or as an HTTP date
+     *
+     * @return Delay in milliseconds, or -1 if the response has no valid hint
+     */
+    protected long getRetryAfterMs(HttpTransport.Response response) {
+        String retryAfter = response.retryAfter;
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds >= 0 ? seconds * 1000 : -1;
+        } catch (NumberFormatException e) {
+            // Not delta-seconds - try an HTTP date
         }
+        SimpleDateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = httpDate.parse(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            Log.d(TAG, "Ignoring invalid Retry-After header: " + value);
+            return -1;
+        }
+    }
+
+    /**
+     * POST a prepared body to the endpoint through the shared transport
+     */
+    protected HttpTransport.Response post(byte[] body) throws IOException {
+        return transport.post(endpoint, getContentType(), body);
     }
 
-    protected abstract byte[] makeBody(String fromNumber, String content);
+    protected abstract byte[] makeBody(String fromNumber, String content, long timestamp);
 
     protected abstract String getContentType();
-}
\ No newline at end of file
+}
@@ -0,0 +1,20 @@
+package com.keremgok.smsforward;
+
+import java.util.concurrent.FutureTask;
+
+/**
+ * A message waiting to be sent as part of a batch (webhook batch or email digest)
+ */
+public final class BatchItem {
+    public final String fromNumber;
+    public final String content;
+    public final long timestamp;
+    // Offline queue copy kept while the item waits in a batch, yields its ID; null if there is none
+    volatile FutureTask<Long> backup;
+
+    public BatchItem(String fromNumber, String content, long timestamp) {
+        this.fromNumber = fromNumber;
+        this.content = content;
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,194 @@
+package com.keremgok.smsforward;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breakers per forwarder type and destination, so a dead endpoint
+ * does not cost every message a full round of retries and timeouts.
+ * <ul>
+ * <li>Closed: requests go through. {@link #FAILURE_THRESHOLD} consecutive
+ * failures open the circuit.</li>
+ * <li>Open: requests are refused and messages wait in the offline queue.</li>
+ * <li>Half-open: once the open period is over, a single probe request is let
+ * through. Success closes the circuit, failure opens it again for twice as
+ * long, up to {@link #MAX_OPEN_MS}.</li>
+ * </ul>
+ * Singleton pattern so live forwards and the queue share the same state.
+ */
+public class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+    private static final int FAILURE_THRESHOLD = 5; // Consecutive failures that open the circuit
+    private static final long INITIAL_OPEN_MS = 30 * 1000;
+    private static final long MAX_OPEN_MS = 10 * 60 * 1000;
+    private static final long PROBE_TIMEOUT_MS = 60 * 1000; // Another probe is allowed if one never reports back
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static volatile CircuitBreaker instance;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    private CircuitBreaker() {
+    }
+
+    /**
+     * Get the singleton instance of CircuitBreaker.
+     */
+    public static CircuitBreaker getInstance() {
+        if (instance == null) {
+            synchronized (CircuitBreaker.class) {
+                if (instance == null) {
+                    instance = new CircuitBreaker();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Whether a request to the destination may be sent now. When the open
+     * period is over, the first caller gets the probe request and must
+     * report its outcome.
+     *
+     * @param forwarderType Forwarder class name
+     * @param destination   Where the message goes, e.g. the webhook URL, or null
+     */
+    public boolean allowRequest(String forwarderType, String destination) {
+        return get(forwarderType, destination).allowRequest(forwarderType);
+    }
+
+    /**
+     * Report a request that reached the destination
+     */
+    public void recordSuccess(String forwarderType, String destination) {
+        Circuit circuit = circuits.get(key(forwarderType, destination));
+        if (circuit != null) {
+            circuit.recordSuccess(forwarderType);
+        }
+    }
+
+    /**
+     * Report a request that failed
+     */
+    public void recordFailure(String forwarderType, String destination) {
+        get(forwarderType, destination).recordFailure(forwarderType);
+    }
+
+    /**
+     * Report a request that failed with the given error. A permanent HTTP
+     * rejection proves the destination is up, so it does not count as a failure.
+     */
+    public void recordFailure(String forwarderType, String destination, Throwable error) {
+        if (HttpStatusException.isPermanent(error)) {
+            recordSuccess(forwarderType, destination);
+        } else {
+            recordFailure(forwarderType, destination);
+        }
+    }
+
+    /**
+     * Get the time until a request to the destination may be sent again
+     *
+     * @return milliseconds until the next probe, or 0 if requests are allowed now
+     */
+    public long getTimeUntilRetry(String forwarderType, String destination) {
+        Circuit circuit = circuits.get(key(forwarderType, destination));
+        return circuit != null ? circuit.getTimeUntilRetry() : 0;
+    }
+
+    /**
+     * Get the state of the circuit to a destination
+     */
+    public State getState(String forwarderType, String destination) {
+        Circuit circuit = circuits.get(key(forwarderType, destination));
+        return circuit != null ? circuit.getState() : State.CLOSED;
+    }
+
+    /**
+     * Close all circuits (mainly for testing purposes).
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    private Circuit get(String forwarderType, String destination) {
+        String key = key(forwarderType, destination);
+        Circuit circuit = circuits.get(key);
+        if (circuit == null) {
+            circuit = circuits.computeIfAbsent(key, k -> new Circuit());
+        }
+        return circuit;
+    }
+
+    private static String key(String forwarderType, String destination) {
+        return destination == null ? forwarderType : forwarderType + "\n" + destination;
+    }
+
+    /**
+     * State of one circuit, guarded by its monitor
+     */
+    private static final class Circuit {
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openMs = INITIAL_OPEN_MS;
+        private long retryAt; // End of the open period, or when a half-open probe times out
+
+        synchronized boolean allowRequest(String forwarderType) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now < retryAt) {
+                return false;
+            }
+            // Let one probe through; the others wait for its outcome
+            state = State.HALF_OPEN;
+            retryAt = now + PROBE_TIMEOUT_MS;
+            Log.i(TAG, "Probing " + forwarderType);
+            return true;
+        }
+
+        synchronized void recordSuccess(String forwarderType) {
+            if (state != State.CLOSED) {
+                Log.i(TAG, "Circuit closed for " + forwarderType);
+            }
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            openMs = INITIAL_OPEN_MS;
+        }
+
+        synchronized void recordFailure(String forwarderType) {
+            if (state == State.HALF_OPEN) {
+                // The probe failed - stay away longer
+                openMs = Math.min(MAX_OPEN_MS, openMs * 2);
+                open(forwarderType);
+            } else if (state == State.CLOSED && ++consecutiveFailures >= FAILURE_THRESHOLD) {
+                open(forwarderType);
+            }
+        }
+
+        synchronized long getTimeUntilRetry() {
+            if (state == State.CLOSED) {
+                return 0;
+            }
+            return Math.max(0, retryAt - SystemClock.elapsedRealtime());
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        private void open(String forwarderType) {
+            state = State.OPEN;
+            retryAt = SystemClock.elapsedRealtime() + openMs;
+            Log.w(TAG, String.format("Circuit opened for %s after %d failure(s), next probe in %d s",
+                    forwarderType, consecutiveFailures, openMs / 1000));
+        }
+    }
+}
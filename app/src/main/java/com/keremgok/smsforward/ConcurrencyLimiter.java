@@ -0,0 +1,211 @@
+package com.keremgok.smsforward;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive limit on the number of concurrent forward calls per forwarder type.
+ * The limit grows by about one per round trip while latency stays near the
+ * lowest latency seen (additive increase), shrinks gently when latency
+ * climbs because requests start to queue at the destination (Vegas-style),
+ * and is halved when a call times out or the destination signals overload
+ * (multiplicative decrease). Calls over the limit are refused right away with
+ * {@link LimitExceededException}; the caller re-schedules or queues them, so a
+ * shared thread never waits for a slot of some other forwarder type.
+ * Singleton pattern so every path to a destination shares the same limit.
+ */
+public final class ConcurrencyLimiter {
+    private static final String TAG = "ConcurrencyLimiter";
+    public static final long RETRY_DELAY_MS = 1000; // Refused calls are tried again after this
+    private static final double LATENCY_TOLERANCE = 2.0; // Latency up to this multiple of the minimum counts as stable
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final int MIN_RTT_SAMPLES = 200; // The minimum latency is re-learned after this many calls
+    private static final LimitConfig DEFAULT_CONFIG = new LimitConfig(2, 8);
+
+    private static volatile ConcurrencyLimiter instance;
+
+    private final Map<String, LimitConfig> configs = new ConcurrentHashMap<>();
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    private ConcurrencyLimiter() {
+        configs.put("SmsForwarder", new LimitConfig(1, 2));
+        configs.put("TelegramForwarder", new LimitConfig(2, 8));
+        configs.put("JsonWebForwarder", new LimitConfig(4, 16));
+        configs.put("EmailForwarder", new LimitConfig(1, 1)); // One pooled SMTP connection, sends are serialized
+    }
+
+    /**
+     * Get the process-wide concurrency limiter
+     */
+    public static ConcurrencyLimiter getInstance() {
+        if (instance == null) {
+            synchronized (ConcurrencyLimiter.class) {
+                if (instance == null) {
+                    instance = new ConcurrencyLimiter();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Run a forward call within the concurrency limit of its forwarder type and
+     * adjust the limit from its latency and outcome
+     *
+     * @param forwarderType Forwarder class name
+     * @throws LimitExceededException if no slot is free right now
+     */
+    public <T> T call(String forwarderType, Callable<T> call) throws Exception {
+        Limit limit = get(forwarderType);
+        if (!limit.tryAcquire()) {
+            throw new LimitExceededException(forwarderType, limit.getLimit());
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            T result = call.call();
+            limit.onSuccess(SystemClock.elapsedRealtime() - start);
+            return result;
+        } catch (Exception e) {
+            if (isOverload(e)) {
+                limit.onOverload(forwarderType);
+            } else {
+                limit.onIgnore();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the current concurrency limit of a forwarder type
+     */
+    public int getLimit(String forwarderType) {
+        return get(forwarderType).getLimit();
+    }
+
+    /**
+     * Whether a failure means the destination is overloaded rather than that
+     * this particular request is bad: a timeout, or a 429 or 5xx response
+     */
+    static boolean isOverload(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause instanceof HttpStatusException) {
+                return ((HttpStatusException) cause).isOverload();
+            }
+        }
+        return false;
+    }
+
+    private Limit get(String forwarderType) {
+        Limit limit = limits.get(forwarderType);
+        if (limit == null) {
+            LimitConfig config = configs.get(forwarderType);
+            limit = limits.computeIfAbsent(forwarderType,
+                    type -> new Limit(config != null ? config : DEFAULT_CONFIG));
+        }
+        return limit;
+    }
+
+    /**
+     * A call refused because its forwarder type has no free slot. Nothing was sent.
+     */
+    public static final class LimitExceededException extends IOException {
+        LimitExceededException(String forwarderType, int limit) {
+            super("Concurrency limit of " + limit + " reached for " + forwarderType);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this; // Expected under load, the stack trace is never needed
+        }
+    }
+
+    /**
+     * Initial and maximum concurrency of a forwarder type
+     */
+    private static final class LimitConfig {
+        final int initialLimit;
+        final int maxLimit;
+
+        LimitConfig(int initialLimit, int maxLimit) {
+            this.initialLimit = initialLimit;
+            this.maxLimit = maxLimit;
+        }
+    }
+
+    /**
+     * Limit and in-flight count of one forwarder type, guarded by its monitor
+     */
+    private static final class Limit {
+        private final int maxLimit;
+        private double limit;
+        private int inFlight;
+        private long minRtt = Long.MAX_VALUE;
+        private int samplesSinceMinRtt;
+        private long lastDecreaseAt;
+
+        Limit(LimitConfig config) {
+            this.maxLimit = Math.max(1, config.maxLimit);
+            this.limit = Math.max(1, Math.min(maxLimit, config.initialLimit));
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void onSuccess(long rtt) {
+            boolean saturated = inFlight >= (int) limit; // Only grow a limit that is actually used
+            release();
+            if (++samplesSinceMinRtt >= MIN_RTT_SAMPLES) {
+                // Let the baseline follow a destination that got permanently slower
+                minRtt = Long.MAX_VALUE;
+                samplesSinceMinRtt = 0;
+            }
+            minRtt = Math.min(minRtt, Math.max(1, rtt));
+
+            if (rtt > minRtt * LATENCY_TOLERANCE) {
+                // Requests are queueing at the destination
+                limit = Math.max(1, limit - 1 / limit);
+            } else if (saturated) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        synchronized void onOverload(String forwarderType) {
+            release();
+            long now = SystemClock.elapsedRealtime();
+            // Calls that were in flight together fail together - back off once for all of them
+            if (now - lastDecreaseAt < Math.max(1000, minRtt == Long.MAX_VALUE ? 0 : minRtt)) {
+                return;
+            }
+            lastDecreaseAt = now;
+            limit = Math.max(1, limit * BACKOFF_RATIO);
+            Log.w(TAG, String.format("%s is overloaded, concurrency limit lowered to %d",
+                    forwarderType, (int) limit));
+        }
+
+        synchronized void onIgnore() {
+            release();
+        }
+
+        private void release() {
+            inFlight--;
+        }
+    }
+}
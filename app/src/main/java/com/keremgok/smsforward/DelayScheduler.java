@@ -0,0 +1,163 @@
+package com.keremgok.smsforward;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel for many short delays, used to hold rate-limited
+ * messages until their bucket has a permit again. Scheduling and expiry are
+ * O(1) per task, at the price of a resolution of one tick. Delays longer than
+ * one turn of the wheel wait for the required number of extra turns.
+ * <p>
+ * A single daemon thread advances the wheel and runs expired tasks, so tasks
+ * must be short and hand real work off to an executor. The thread sleeps
+ * while the wheel is empty. Tasks still waiting on {@link #shutdown()} are
+ * dropped.
+ */
+public class DelayScheduler {
+    private static final String TAG = "DelayScheduler";
+
+    private final long tickMs;
+    private final List<Task>[] wheel;
+    private final int mask;
+    private final Object lock = new Object();
+    private final long origin = SystemClock.elapsedRealtime();
+    private final Thread thread;
+
+    // Guarded by lock
+    private long currentTick; // Next tick to expire
+    private int size;
+    private boolean running = true;
+
+    /**
+     * @param tickMs    Resolution of the wheel
+     * @param wheelSize Slots per turn, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public DelayScheduler(String name, long tickMs, int wheelSize) {
+        this.tickMs = Math.max(1, tickMs);
+        int slots = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.wheel = new List[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.mask = slots - 1;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Run a task after the given delay, rounded up to the next tick
+     *
+     * @return false if the scheduler has been shut down
+     */
+    public boolean schedule(long delayMs, Runnable runnable) {
+        synchronized (lock) {
+            if (!running) {
+                return false;
+            }
+            long now = now();
+            if (size == 0) {
+                // The thread stopped advancing while the wheel was empty - skip the idle ticks
+                currentTick = Math.max(currentTick, now / tickMs);
+            }
+            long deadlineTick = Math.max(currentTick, (now + Math.max(0, delayMs) + tickMs - 1) / tickMs);
+            wheel[(int) (deadlineTick & mask)].add(new Task(runnable, (deadlineTick - currentTick) / wheel.length));
+            size++;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of tasks waiting
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Stop the wheel thread and drop the tasks still waiting
+     *
+     * @return Number of dropped tasks
+     */
+    public int shutdown() {
+        int dropped;
+        synchronized (lock) {
+            running = false;
+            dropped = size;
+            for (List<Task> slot : wheel) {
+                slot.clear();
+            }
+            size = 0;
+            lock.notifyAll();
+        }
+        thread.interrupt();
+        return dropped;
+    }
+
+    private void run() {
+        List<Runnable> expired = new ArrayList<>();
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (running && size == 0) {
+                        lock.wait();
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    long waitMs = currentTick * tickMs - now();
+                    if (waitMs > 0) {
+                        lock.wait(waitMs);
+                        continue;
+                    }
+                    // Expire one tick; a thread that fell behind catches up without waiting
+                    Iterator<Task> iterator = wheel[(int) (currentTick & mask)].iterator();
+                    while (iterator.hasNext()) {
+                        Task task = iterator.next();
+                        if (task.remainingTurns == 0) {
+                            expired.add(task.runnable);
+                            iterator.remove();
+                            size--;
+                        } else {
+                            task.remainingTurns--;
+                        }
+                    }
+                    currentTick++;
+                }
+                for (Runnable runnable : expired) {
+                    try {
+                        runnable.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Delayed task failed", e);
+                    }
+                }
+                expired.clear();
+            }
+        } catch (InterruptedException e) {
+            // Shut down
+        }
+    }
+
+    private long now() {
+        return SystemClock.elapsedRealtime() - origin;
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        long remainingTurns; // Full turns of the wheel left before the task expires
+
+        Task(Runnable runnable, long remainingTurns) {
+            this.runnable = runnable;
+            this.remainingTurns = remainingTurns;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.keremgok.smsforward;
 import android.content.Context;
 
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -12,52 +13,23 @@ import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.PasswordAuthentication;
 import jakarta.mail.Session;
-import jakarta.mail.Transport;
 import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
 
 public final class EmailForwarder implements Forwarder {
     private static final Pattern SENDER_NAME_PATTERN = Pattern.compile("^【(.+)】.*");
 
     private final InternetAddress fromAddress;
     private final InternetAddress[] toAddresses;
-    private final Properties props;
-    private final Authenticator authenticator;
+    private final Session session;
+    private final String transportKey;
     private final Context context;
 
     public EmailForwarder(InternetAddress fromAddress, InternetAddress[] toAddresses, String smtpHost, short port,
             String username, String password) {
-        this.fromAddress = fromAddress;
-        this.toAddresses = toAddresses;
-        this.context = null; // For backward compatibility
-
-        props = new Properties();
-        props.setProperty("mail.transport.protocol", "smtp");
-        props.setProperty("mail.smtp.connectiontimeout", "10000");
-        props.setProperty("mail.smtp.timeout", "10000");
-        props.setProperty("mail.smtp.writetimeout", "10000");
-        props.setProperty("mail.smtp.allow8bitmime", "true");
-        props.setProperty("mail.smtp.host", smtpHost);
-        props.setProperty("mail.smtp.port", Short.toString(port));
-        props.setProperty("mail.smtp.auth", "true");
-
-        // https://www.oracle.com/docs/tech/java/sslnotes142.txt
-        props.setProperty("mail.smtp.ssl.checkserveridentity", "true");
-        if (port == 465) {
-            // Implicit TLS
-            props.setProperty("mail.smtp.ssl.enable", "true");
-        } else {
-            props.setProperty("mail.smtp.starttls.enable", "true");
-            props.setProperty("mail.smtp.starttls.required", "true");
-        }
-
-        PasswordAuthentication authentication = new PasswordAuthentication(username, password);
-        authenticator = new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return authentication;
-            }
-        };
+        this(fromAddress, toAddresses, smtpHost, port, username, password, null); // For backward compatibility
     }
 
     public EmailForwarder(InternetAddress fromAddress, InternetAddress[] toAddresses, String smtpHost, short port,
@@ -66,7 +38,7 @@ public final class EmailForwarder implements Forwarder {
         this.toAddresses = toAddresses;
         this.context = context;
 
-        props = new Properties();
+        Properties props = new Properties();
         props.setProperty("mail.transport.protocol", "smtp");
         props.setProperty("mail.smtp.connectiontimeout", "10000");
         props.setProperty("mail.smtp.timeout", "10000");
@@ -87,12 +59,16 @@ public final class EmailForwarder implements Forwarder {
         }
 
         PasswordAuthentication authentication = new PasswordAuthentication(username, password);
-        authenticator = new Authenticator() {
+        Authenticator authenticator = new Authenticator() {
             @Override
             protected PasswordAuthentication getPasswordAuthentication() {
                 return authentication;
             }
         };
+
+        // One session per configuration; the connection itself is pooled
+        session = Session.getInstance(props, authenticator);
+        transportKey = username + "@" + smtpHost + ":" + port + "#" + password.hashCode();
     }
 
     @Override
@@ -126,12 +102,61 @@ public final class EmailForwarder implements Forwarder {
             subject = "SMS from: " + fromNumber;
         }
 
-        Session session = Session.getInstance(props, authenticator);
         MimeMessage message = new MimeMessage(session);
         message.setFrom(prettyFromAddress);
         message.addRecipients(Message.RecipientType.TO, toAddresses);
         message.setSubject(subject);
         message.setText(emailBody, "UTF-8");
-        Transport.send(message);
+        SmtpTransportPool.getInstance().send(transportKey, session, message);
+    }
+
+    /**
+     * Send several messages as one digest email. Every SMS becomes its own
+     * text part of a multipart/mixed message, in arrival order.
+     *
+     * @param items Messages to include in the digest
+     * @return One null entry per item; a digest is delivered or failed as a whole
+     * @throws MessagingException if the digest could not be sent
+     */
+    public String[] forwardDigest(List<BatchItem> items) throws MessagingException {
+        if (items.size() == 1) {
+            BatchItem item = items.get(0);
+            forward(item.fromNumber, item.content, item.timestamp);
+            return new String[1];
+        }
+
+        java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("dd/MM/yyyy HH:mm:ss",
+                java.util.Locale.getDefault());
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        for (BatchItem item : items) {
+            String formattedDate = dateFormat.format(new java.util.Date(item.timestamp));
+            String partBody;
+            if (context != null) {
+                partBody = context.getString(R.string.email_digest_part_format, item.fromNumber, item.content,
+                        formattedDate);
+            } else {
+                // Fallback for backward compatibility
+                partBody = "From " + item.fromNumber + ":\n" + item.content + "\n\nReceived at: " + formattedDate;
+            }
+            MimeBodyPart part = new MimeBodyPart();
+            part.setText(partBody, "UTF-8");
+            multipart.addBodyPart(part);
+        }
+
+        String subject;
+        if (context != null) {
+            subject = context.getString(R.string.email_digest_subject_format, items.size());
+        } else {
+            subject = items.size() + " SMS messages";
+        }
+
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(fromAddress);
+        message.addRecipients(Message.RecipientType.TO, toAddresses);
+        message.setSubject(subject, "UTF-8");
+        message.setContent(multipart);
+        SmtpTransportPool.getInstance().send(transportKey, session, message);
+        return new String[items.size()];
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.keremgok.smsforward;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide latency instrumentation around {@link Forwarder} calls.
+ * Records per forwarder type how long each forward attempt takes, how long
+ * an SMS takes from being received to being delivered, and how long
+ * delivered messages waited in the offline queue. Metrics live in memory
+ * and start over when the process restarts.
+ */
+public final class ForwarderMetrics {
+    private static volatile ForwarderMetrics instance;
+
+    private final Map<String, Histograms> histograms = new ConcurrentHashMap<>();
+    private final long collectingSince = System.currentTimeMillis();
+
+    private ForwarderMetrics() {
+    }
+
+    /**
+     * Get the process-wide metrics
+     */
+    public static ForwarderMetrics getInstance() {
+        if (instance == null) {
+            synchronized (ForwarderMetrics.class) {
+                if (instance == null) {
+                    instance = new ForwarderMetrics();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Forward a message and record the attempt, and the delivery if it succeeds
+     *
+     * @param forwarderType Name the metrics are recorded under
+     */
+    public void forward(Forwarder forwarder, String forwarderType, String fromNumber, String content,
+            long timestamp) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            forwarder.forward(fromNumber, content, timestamp);
+        } finally {
+            recordAttempt(forwarderType, SystemClock.elapsedRealtime() - start);
+        }
+        recordDelivery(forwarderType, timestamp);
+    }
+
+    /**
+     * Record how long one forward attempt (or one batch request) took
+     */
+    public void recordAttempt(String forwarderType, long durationMs) {
+        get(forwarderType).attempt.record(durationMs);
+    }
+
+    /**
+     * Record a delivered message
+     *
+     * @param smsTimestamp When the SMS was received
+     */
+    public void recordDelivery(String forwarderType, long smsTimestamp) {
+        get(forwarderType).delivery.record(System.currentTimeMillis() - smsTimestamp);
+    }
+
+    /**
+     * Record a message delivered from the offline queue
+     *
+     * @param enqueuedAt When the message was added to the queue
+     */
+    public void recordQueueWait(String forwarderType, long enqueuedAt) {
+        get(forwarderType).queueWait.record(System.currentTimeMillis() - enqueuedAt);
+    }
+
+    /**
+     * Get p50/p95/p99 latencies for every forwarder type
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, MetricsSnapshot.ForwarderLatency> byType = new HashMap<>();
+        for (Map.Entry<String, Histograms> entry : histograms.entrySet()) {
+            Histograms h = entry.getValue();
+            byType.put(entry.getKey(), new MetricsSnapshot.ForwarderLatency(
+                    new MetricsSnapshot.Percentiles(h.attempt),
+                    new MetricsSnapshot.Percentiles(h.delivery),
+                    new MetricsSnapshot.Percentiles(h.queueWait)));
+        }
+        return new MetricsSnapshot(collectingSince, byType);
+    }
+
+    private Histograms get(String forwarderType) {
+        Histograms h = histograms.get(forwarderType);
+        if (h == null) {
+            h = histograms.computeIfAbsent(forwarderType, type -> new Histograms());
+        }
+        return h;
+    }
+
+    private static final class Histograms {
+        final LatencyHistogram attempt = new LatencyHistogram();
+        final LatencyHistogram delivery = new LatencyHistogram();
+        final LatencyHistogram queueWait = new LatencyHistogram();
+    }
+}
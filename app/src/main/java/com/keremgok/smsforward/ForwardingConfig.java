@@ -0,0 +1,363 @@
+package com.keremgok.smsforward;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * Immutable snapshot of the forwarding preferences.
+ * Built once from {@link SharedPreferences} and rebuilt by
+ * {@link ForwardingEngine} only when a preference changes, so the per-message
+ * path never parses preferences or constructs forwarders.
+ */
+public final class ForwardingConfig {
+    private static final String TAG = "ForwardingConfig";
+    // Queue configuration fields that identify where a forwarder sends to
+    private static final String[] DESTINATION_KEYS = { "targetNumber", "targetId", "targetUrl", "host" };
+    // Preferences read by load(); a change to any other preference keeps the snapshot valid
+    private static final int[] PREFERENCE_KEYS = {
+            R.string.key_enable_sms,
+            R.string.key_target_sms,
+            R.string.key_enable_telegram,
+            R.string.key_target_telegram,
+            R.string.key_telegram_apikey,
+            R.string.key_enable_web,
+            R.string.key_target_web,
+            R.string.key_web_batch_enabled,
+            R.string.key_web_batch_window,
+            R.string.key_web_batch_size,
+            R.string.key_enable_email,
+            R.string.key_email_from_address,
+            R.string.key_email_to_address,
+            R.string.key_email_submit_host,
+            R.string.key_email_submit_port,
+            R.string.key_email_submit_password,
+            R.string.key_email_username_style,
+            R.string.key_email_digest_enabled,
+            R.string.key_email_digest_window,
+            R.string.key_enable_rate_limiting,
+            R.string.key_sms_rate_limit,
+            R.string.key_filter_keywords,
+            R.string.key_filter_rules,
+            R.string.key_enable_number_whitelist,
+            R.string.key_number_whitelist
+    };
+
+    /**
+     * Wraps the raw forwarders built from preferences (e.g. with retry support)
+     */
+    public interface ForwarderWrapper {
+        /**
+         * @param forwarderConfig Configuration JSON to store with queued messages of this forwarder
+         */
+        RetryableForwarder wrap(Forwarder forwarder, String forwarderConfig);
+    }
+
+    public final boolean smsEnabled;
+    public final String targetNumber;
+    public final boolean telegramEnabled;
+    public final boolean webEnabled;
+    public final boolean webBatchEnabled;
+    public final long webBatchWindowMs;
+    public final int webBatchSize;
+    public final boolean emailEnabled;
+    public final boolean emailDigestEnabled;
+    public final long emailDigestWindowMs;
+    public final boolean rateLimitingEnabled;
+    public final int smsLimitPerMinute;
+    public final String filterKeywords;
+    public final KeywordMatcher keywordFilter;
+    public final SmsRuleFilter filterRules;
+    public final boolean whitelistEnabled;
+    public final String numberWhitelist;
+    public final PhoneNumberIndex numberFilter;
+
+    // Forwarders ready to use, in the same order as the settings screen
+    private final List<RetryableForwarder> forwarders;
+    // Forwarder type -> JSON stored with queued messages, and the forwarder it was built from
+    private final Map<String, String> queueConfigs;
+    private final Map<String, Forwarder> delegatesByType;
+    // Forwarder type -> destination used to pick its rate limit bucket
+    private final Map<String, String> destinationsByType;
+
+    private ForwardingConfig(Builder builder, ForwarderWrapper wrapper) {
+        this.smsEnabled = builder.smsEnabled;
+        this.targetNumber = builder.targetNumber;
+        this.telegramEnabled = builder.telegramEnabled;
+        this.webEnabled = builder.webEnabled;
+        this.webBatchEnabled = builder.webBatchEnabled;
+        this.webBatchWindowMs = builder.webBatchWindowMs;
+        this.webBatchSize = builder.webBatchSize;
+        this.emailEnabled = builder.emailEnabled;
+        this.emailDigestEnabled = builder.emailDigestEnabled;
+        this.emailDigestWindowMs = builder.emailDigestWindowMs;
+        this.rateLimitingEnabled = builder.rateLimitingEnabled;
+        this.smsLimitPerMinute = builder.smsLimitPerMinute;
+        this.filterKeywords = builder.filterKeywords;
+        this.keywordFilter = SmsContentFilter.compile(builder.filterKeywords);
+        this.filterRules = SmsRuleFilter.compile(builder.filterRules);
+        this.whitelistEnabled = builder.whitelistEnabled;
+        this.numberWhitelist = builder.numberWhitelist;
+        this.numberFilter = SmsNumberFilter.compile(builder.numberWhitelist);
+
+        this.queueConfigs = Collections.unmodifiableMap(new HashMap<>(builder.queueConfigs));
+        List<RetryableForwarder> wrapped = new ArrayList<>(builder.delegates.size());
+        Map<String, Forwarder> byType = new HashMap<>();
+        for (Forwarder delegate : builder.delegates) {
+            String forwarderType = delegate.getClass().getSimpleName();
+            wrapped.add(wrapper.wrap(delegate, getQueueConfig(forwarderType)));
+            byType.put(forwarderType, delegate);
+        }
+        this.forwarders = Collections.unmodifiableList(wrapped);
+        this.delegatesByType = Collections.unmodifiableMap(byType);
+        Map<String, String> destinations = new HashMap<>();
+        for (Map.Entry<String, String> queueConfig : builder.queueConfigs.entrySet()) {
+            destinations.put(queueConfig.getKey(), destinationOf(queueConfig.getValue()));
+        }
+        this.destinationsByType = Collections.unmodifiableMap(destinations);
+    }
+
+    /**
+     * Read all forwarding preferences and build the forwarders they describe
+     */
+    public static ForwardingConfig load(Context context, SharedPreferences preferences, ForwarderWrapper wrapper) {
+        Builder builder = new Builder();
+
+        builder.smsEnabled = preferences.getBoolean(context.getString(R.string.key_enable_sms), false);
+        builder.targetNumber = preferences.getString(context.getString(R.string.key_target_sms), "");
+        builder.telegramEnabled = preferences.getBoolean(context.getString(R.string.key_enable_telegram), false);
+        String targetTelegram = preferences.getString(context.getString(R.string.key_target_telegram), "");
+        String telegramToken = preferences.getString(context.getString(R.string.key_telegram_apikey), "");
+        builder.webEnabled = preferences.getBoolean(context.getString(R.string.key_enable_web), false);
+        String targetWeb = preferences.getString(context.getString(R.string.key_target_web), "");
+        builder.webBatchEnabled = preferences.getBoolean(context.getString(R.string.key_web_batch_enabled), false);
+        builder.webBatchWindowMs = parsePositive(
+                preferences.getString(context.getString(R.string.key_web_batch_window), "2000"), 2000);
+        builder.webBatchSize = (int) parsePositive(
+                preferences.getString(context.getString(R.string.key_web_batch_size), "20"), 20);
+        builder.emailEnabled = preferences.getBoolean(context.getString(R.string.key_enable_email), false);
+        String fromEmailAddress = preferences.getString(context.getString(R.string.key_email_from_address), "");
+        String toEmailAddress = preferences.getString(context.getString(R.string.key_email_to_address), "");
+        String smtpHost = preferences.getString(context.getString(R.string.key_email_submit_host), "");
+        short smtpPort = parsePort(preferences.getString(context.getString(R.string.key_email_submit_port), "0"));
+        String smtpPassword = preferences.getString(context.getString(R.string.key_email_submit_password), "");
+        String smtpUsernameStyle = preferences.getString(context.getString(R.string.key_email_username_style), "full");
+        builder.emailDigestEnabled = preferences.getBoolean(context.getString(R.string.key_email_digest_enabled), false);
+        builder.emailDigestWindowMs = parsePositive(
+                preferences.getString(context.getString(R.string.key_email_digest_window), "60000"), 60000);
+        builder.rateLimitingEnabled = preferences.getBoolean(context.getString(R.string.key_enable_rate_limiting), true);
+        builder.smsLimitPerMinute = (int) Math.min(RateLimiter.Bucket.MAX_CAPACITY, parsePositive(
+                preferences.getString(context.getString(R.string.key_sms_rate_limit), "10"), 10));
+        builder.filterKeywords = preferences.getString(context.getString(R.string.key_filter_keywords), "");
+        builder.filterRules = preferences.getString(context.getString(R.string.key_filter_rules), "");
+        builder.whitelistEnabled = preferences.getBoolean(context.getString(R.string.key_enable_number_whitelist), false);
+        builder.numberWhitelist = preferences.getString(context.getString(R.string.key_number_whitelist), "");
+
+        // Each forwarder is built on its own, so a bad setting only disables that forwarder
+        if (builder.smsEnabled && !builder.targetNumber.isEmpty()) {
+            try {
+                JSONObject config = new JSONObject();
+                config.put("targetNumber", builder.targetNumber);
+                builder.add(new SmsForwarder(builder.targetNumber, context), config);
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "Invalid SMS configuration, SMS forwarding disabled: " + e.getMessage(), e);
+            }
+        }
+        if (builder.telegramEnabled && !targetTelegram.isEmpty() && !telegramToken.isEmpty()) {
+            try {
+                JSONObject config = new JSONObject();
+                config.put("targetId", targetTelegram);
+                config.put("apiKey", telegramToken);
+                builder.add(new TelegramForwarder(targetTelegram, telegramToken, context), config);
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "Invalid Telegram configuration, Telegram forwarding disabled: " + e.getMessage(), e);
+            }
+        }
+        if (builder.webEnabled && !targetWeb.isEmpty()) {
+            try {
+                JSONObject config = new JSONObject();
+                config.put("targetUrl", targetWeb);
+                builder.add(new JsonWebForwarder(targetWeb), config);
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "Invalid webhook configuration, web forwarding disabled: " + e.getMessage(), e);
+            }
+        }
+        if (builder.emailEnabled && !fromEmailAddress.isEmpty() && !toEmailAddress.isEmpty() &&
+                !smtpHost.isEmpty() && smtpPort != 0 && !smtpPassword.isEmpty()) {
+            try {
+                InternetAddress fromAddress = new InternetAddress(fromEmailAddress, true);
+                InternetAddress[] toAddresses = InternetAddress.parse(toEmailAddress);
+                String username = "full".equals(smtpUsernameStyle)
+                        ? fromAddress.getAddress()
+                        : fromAddress.getAddress().substring(0, fromAddress.getAddress().indexOf("@"));
+
+                JSONObject config = new JSONObject();
+                config.put("fromAddress", fromEmailAddress);
+                config.put("toAddress", toEmailAddress);
+                config.put("host", smtpHost);
+                config.put("port", smtpPort);
+                config.put("username", username);
+                config.put("password", smtpPassword);
+                builder.add(new EmailForwarder(
+                        fromAddress,
+                        toAddresses,
+                        smtpHost,
+                        smtpPort,
+                        username,
+                        smtpPassword,
+                        context), config);
+            } catch (AddressException e) {
+                Log.e(TAG, "Invalid email address, email forwarding disabled: " + e.getMessage());
+            } catch (JSONException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                Log.e(TAG, "Invalid email configuration, email forwarding disabled: " + e.getMessage(), e);
+            }
+        }
+
+        return new ForwardingConfig(builder, wrapper);
+    }
+
+    private static short parsePort(String port) {
+        try {
+            return Short.parseShort(port);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long parsePositive(String value, long defaultValue) {
+        try {
+            long parsed = Long.parseLong(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Whether any forwarding platform is switched on
+     */
+    public boolean hasEnabledPlatform() {
+        return smsEnabled || telegramEnabled || webEnabled || emailEnabled;
+    }
+
+    /**
+     * Get the prebuilt forwarders for all enabled and fully configured platforms
+     */
+    public List<RetryableForwarder> getForwarders() {
+        return forwarders;
+    }
+
+    /**
+     * Get the webhook forwarder if web forwarding is configured, otherwise null
+     */
+    public JsonWebForwarder getWebForwarder() {
+        return (JsonWebForwarder) delegatesByType.get(JsonWebForwarder.class.getSimpleName());
+    }
+
+    /**
+     * Get the email forwarder if email forwarding is configured, otherwise null
+     */
+    public EmailForwarder getEmailForwarder() {
+        return (EmailForwarder) delegatesByType.get(EmailForwarder.class.getSimpleName());
+    }
+
+    /**
+     * Get the configuration JSON to store with queued messages for a forwarder type
+     */
+    public String getQueueConfig(String forwarderType) {
+        String config = queueConfigs.get(forwarderType);
+        return config != null ? config : "{}";
+    }
+
+    /**
+     * Get the destination of a forwarder type, e.g. the webhook URL or SMTP host
+     */
+    public String getDestination(String forwarderType) {
+        return destinationsByType.get(forwarderType);
+    }
+
+    /**
+     * Check if a preference key is one of the forwarding settings read by {@link #load}
+     */
+    public static boolean isPreferenceKey(Context context, String key) {
+        for (int keyId : PREFERENCE_KEYS) {
+            if (context.getString(keyId).equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the destination from the configuration JSON stored with a queued message
+     *
+     * @return The destination, or null if the configuration has none
+     */
+    public static String destinationOf(String queueConfig) {
+        try {
+            JSONObject config = new JSONObject(queueConfig);
+            for (String key : DESTINATION_KEYS) {
+                String destination = config.optString(key, "");
+                if (!destination.isEmpty()) {
+                    return destination;
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid queued forwarder configuration: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Get the prebuilt forwarder for a queued message if it was stored with
+     * the current configuration, otherwise null.
+     */
+    public Forwarder findForwarder(String forwarderType, String storedConfig) {
+        String currentConfig = queueConfigs.get(forwarderType);
+        if (currentConfig == null || !currentConfig.equals(storedConfig)) {
+            return null;
+        }
+        return delegatesByType.get(forwarderType);
+    }
+
+    /**
+     * Mutable state collected while reading preferences
+     */
+    private static final class Builder {
+        boolean smsEnabled;
+        String targetNumber;
+        boolean telegramEnabled;
+        boolean webEnabled;
+        boolean webBatchEnabled;
+        long webBatchWindowMs;
+        int webBatchSize;
+        boolean emailEnabled;
+        boolean emailDigestEnabled;
+        long emailDigestWindowMs;
+        boolean rateLimitingEnabled;
+        int smsLimitPerMinute;
+        String filterKeywords;
+        String filterRules;
+        boolean whitelistEnabled;
+        String numberWhitelist;
+        final List<Forwarder> delegates = new ArrayList<>();
+        final Map<String, String> queueConfigs = new HashMap<>();
+
+        void add(Forwarder forwarder, JSONObject queueConfig) {
+            delegates.add(forwarder);
+            queueConfigs.put(forwarder.getClass().getSimpleName(), queueConfig.toString());
+        }
+    }
+}
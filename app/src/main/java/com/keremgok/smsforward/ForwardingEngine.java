@@ -0,0 +1,738 @@
+package com.keremgok.smsforward;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Process-wide forwarding engine owned by {@link SmsForwardApplication}.
+ * Holds the shared database helpers, the single offline queue processor and
+ * bounded executors so that every incoming SMS reuses the same resources
+ * instead of building its own object graph.
+ */
+public class ForwardingEngine {
+    private static final String TAG = "ForwardingEngine";
+    private static final Pattern REVERSE_MESSAGE_PATTERN = Pattern.compile("To (\\+?\\d+?):\\n((.|\\n)*)");
+
+    private static final int FORWARDER_THREADS = 4; // Parallel deliveries across all destinations
+    private static final int MAX_PENDING_FORWARDS = 200; // Deliveries waiting for a free thread
+    private static final int RETRY_THREADS = 2; // Shared by all RetryableForwarders
+    private static final int MAX_DIGEST_MESSAGES = 50; // Messages per digest email
+    private static final long PARK_TICK_MS = 50; // Resolution of the rate limit delay wheel
+    private static final int PARK_WHEEL_SIZE = 1024; // About 51 s per turn of the wheel
+    private static final int MAX_PARKED_MESSAGES = 1000; // Rate-limited messages held in memory
+    private static final long BACKUP_GRACE_MS = 30 * 1000; // Queue backups of parked messages are due this much later
+    private static final long CLOSE_TIMEOUT_SECONDS = 60; // Wait for remaining sends before closing shared resources
+
+    private static ForwardingEngine instance;
+
+    private final Context context;
+    private final MessageStatsDbHelper statsDbHelper;
+    private final MessageHistoryDbHelper historyDbHelper;
+    private final MessageQueueProcessor queueProcessor;
+    private final RateLimiter rateLimiter;
+    private final ThreadPoolExecutor forwarderExecutor;
+    private final ScheduledExecutorService retryExecutor;
+    private final ExecutorService backgroundExecutor; // Short database work kept off the main thread
+    private final DelayScheduler delayScheduler;
+    // Rate limit bucket -> messages parked for it, so each waits for its own permit
+    private final Map<String, Integer> parkedCounts = new ConcurrentHashMap<>();
+    private final SharedPreferences preferences;
+    // Kept as a field: SharedPreferences only holds listeners weakly
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener;
+    private volatile ForwardingConfig config;
+    private volatile MessageBatcher webhookBatcher;
+    private volatile MessageBatcher emailDigestBatcher;
+
+    private ForwardingEngine(Context context) {
+        this.context = context.getApplicationContext();
+        this.statsDbHelper = new MessageStatsDbHelper(this.context);
+        this.historyDbHelper = new MessageHistoryDbHelper(this.context);
+        this.queueProcessor = new MessageQueueProcessor(this.context, statsDbHelper);
+        this.rateLimiter = RateLimiter.getInstance();
+
+        this.forwarderExecutor = new ThreadPoolExecutor(
+                FORWARDER_THREADS,
+                FORWARDER_THREADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_FORWARDS));
+        this.forwarderExecutor.allowCoreThreadTimeOut(true);
+        this.retryExecutor = Executors.newScheduledThreadPool(RETRY_THREADS);
+        this.backgroundExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG + "-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.delayScheduler = new DelayScheduler("RateLimitDelay", PARK_TICK_MS, PARK_WHEEL_SIZE);
+
+        this.preferences = PreferenceManager.getDefaultSharedPreferences(this.context);
+        this.preferenceListener = (sharedPreferences, key) -> {
+            // Null when preferences were cleared (API 30+)
+            if (key == null || ForwardingConfig.isPreferenceKey(this.context, key)) {
+                reloadConfig();
+            } else if (key.equals(this.context.getString(R.string.key_history_capacity))) {
+                applyHistoryCapacity();
+            }
+        };
+        this.preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        reloadConfig();
+        applyHistoryCapacity();
+    }
+
+    /**
+     * Get singleton instance of ForwardingEngine
+     */
+    public static synchronized ForwardingEngine getInstance(Context context) {
+        if (instance == null) {
+            instance = new ForwardingEngine(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Start background work (offline queue processing)
+     */
+    public void start() {
+        queueProcessor.start();
+    }
+
+    /**
+     * Stop all executors and close shared database helpers. The next
+     * {@link #getInstance} call builds a fresh engine. Never blocks the
+     * calling thread: sends already started finish on their own threads,
+     * and every batched or parked message has a backup in the offline queue
+     * in case the process dies first.
+     */
+    public void shutdown() {
+        synchronized (ForwardingEngine.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        Log.i(TAG, "Shutting down forwarding engine");
+        preferences.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        flushAsync(webhookBatcher);
+        flushAsync(emailDigestBatcher);
+        // Parked messages have a backup in the offline queue
+        int parked = delayScheduler.shutdown();
+        if (parked > 0) {
+            Log.i(TAG, "Left " + parked + " rate-limited message(s) to the offline queue");
+        }
+        queueProcessor.stop();
+
+        // Queued sends and scheduled retries still run after shutdown()
+        forwarderExecutor.shutdown();
+        retryExecutor.shutdown();
+        if (!runInBackground(this::closeWhenIdle)) {
+            closeResources();
+        }
+        backgroundExecutor.shutdown();
+    }
+
+    /**
+     * Close shared resources once the remaining sends are done, or after
+     * {@link #CLOSE_TIMEOUT_SECONDS} at most. Runs on the background thread.
+     */
+    private void closeWhenIdle() {
+        try {
+            if (!forwarderExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    || !retryExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Sends still running after shutdown, closing shared resources anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeResources();
+    }
+
+    private void closeResources() {
+        SmtpTransportPool.getInstance().closeAll();
+        statsDbHelper.close();
+        historyDbHelper.close();
+    }
+
+    /**
+     * Get the current forwarding configuration snapshot
+     */
+    public ForwardingConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Rebuild the configuration snapshot and its forwarders from preferences.
+     * Called once at startup and then only when a forwarding preference changes.
+     */
+    private synchronized void reloadConfig() {
+        ForwardingConfig newConfig = ForwardingConfig.load(context, preferences, this::wrap);
+        MessageBatcher oldWebhookBatcher = webhookBatcher;
+        MessageBatcher oldEmailDigestBatcher = emailDigestBatcher;
+        webhookBatcher = createWebhookBatcher(newConfig);
+        emailDigestBatcher = createEmailDigestBatcher(newConfig);
+        config = newConfig;
+        queueProcessor.setForwardingConfig(newConfig);
+        if (rateLimiter.getSmsLimitPerMinute() != newConfig.smsLimitPerMinute) {
+            // The whole limit can be used at once, as before token buckets
+            rateLimiter.setLimit(SmsForwarder.class.getSimpleName(), newConfig.smsLimitPerMinute,
+                    newConfig.smsLimitPerMinute);
+        }
+        // Send what the previous configuration collected
+        if (oldWebhookBatcher != null) {
+            oldWebhookBatcher.flushAsync();
+        }
+        if (oldEmailDigestBatcher != null) {
+            oldEmailDigestBatcher.flushAsync();
+        }
+        Log.d(TAG, "Loaded forwarding configuration with " + newConfig.getForwarders().size() + " forwarder(s)");
+    }
+
+    /**
+     * Apply the history capacity preference to the history database
+     */
+    private void applyHistoryCapacity() {
+        // Resizing rewrites the history table - keep it off the calling (main) thread
+        int historyCapacity = MessageHistoryDbHelper.readCapacity(context);
+        runInBackground(() -> historyDbHelper.setCapacity(historyCapacity));
+    }
+
+    private static void flushAsync(MessageBatcher batcher) {
+        if (batcher != null) {
+            batcher.flushAsync();
+        }
+    }
+
+    /**
+     * Create the webhook batcher when batch mode is enabled for a configured webhook
+     */
+    private MessageBatcher createWebhookBatcher(ForwardingConfig config) {
+        JsonWebForwarder webForwarder = config.getWebForwarder();
+        if (!config.webBatchEnabled || webForwarder == null) {
+            return null;
+        }
+        // Failed webhook items are retried on their own
+        String forwarderType = webForwarder.getClass().getSimpleName();
+        return new MessageBatcher("webhook", guarded(config, forwarderType, false, webForwarder::forwardBatch),
+                retryExecutor, forwarderExecutor, config.webBatchWindowMs, config.webBatchSize,
+                createBatchListener(config, forwarderType, false));
+    }
+
+    /**
+     * Create the email digest batcher when digest mode is enabled for a configured mailbox
+     */
+    private MessageBatcher createEmailDigestBatcher(ForwardingConfig config) {
+        EmailForwarder emailForwarder = config.getEmailForwarder();
+        if (!config.emailDigestEnabled || emailForwarder == null) {
+            return null;
+        }
+        // A failed digest is retried as one digest from the offline queue
+        String forwarderType = emailForwarder.getClass().getSimpleName();
+        return new MessageBatcher("email", guarded(config, forwarderType, true, emailForwarder::forwardDigest),
+                retryExecutor, forwarderExecutor, config.emailDigestWindowMs, MAX_DIGEST_MESSAGES,
+                createBatchListener(config, forwarderType, true));
+    }
+
+    /**
+     * Send every batch request within the concurrency limit of its forwarder type,
+     * record its duration as one forward attempt and report its outcome to the
+     * {@link CircuitBreaker} of the destination. While the circuit is open the
+     * batch goes straight to the offline queue, due at the next probe.
+     *
+     * @param keepBatchId Whether the queued items stay grouped as one batch
+     */
+    private MessageBatcher.Sender guarded(ForwardingConfig config, String forwarderType, boolean keepBatchId,
+            MessageBatcher.Sender sender) {
+        String queueConfig = config.getQueueConfig(forwarderType);
+        String destination = ForwardingConfig.destinationOf(queueConfig);
+        CircuitBreaker circuitBreaker = CircuitBreaker.getInstance();
+        return batch -> {
+            if (!circuitBreaker.allowRequest(forwarderType, destination)) {
+                Log.i(TAG, String.format("Circuit open for %s, sending %d batched message(s) to the offline queue",
+                        forwarderType, batch.size()));
+                queueBatch(batch, forwarderType, queueConfig, keepBatchId,
+                        System.currentTimeMillis() + circuitBreaker.getTimeUntilRetry(forwarderType, destination));
+                return null;
+            }
+            try {
+                return ConcurrencyLimiter.getInstance().call(forwarderType, () -> {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        String[] errors = sender.send(batch);
+                        circuitBreaker.recordSuccess(forwarderType, destination);
+                        return errors;
+                    } catch (Exception e) {
+                        circuitBreaker.recordFailure(forwarderType, destination, e);
+                        throw e;
+                    } finally {
+                        ForwarderMetrics.getInstance().recordAttempt(forwarderType,
+                                SystemClock.elapsedRealtime() - start);
+                    }
+                });
+            } catch (ConcurrencyLimiter.LimitExceededException e) {
+                // Nothing was sent - let the queue try again shortly instead of holding this thread
+                Log.i(TAG, String.format("%s, sending %d batched message(s) to the offline queue",
+                        e.getMessage(), batch.size()));
+                queueBatch(batch, forwarderType, queueConfig, keepBatchId,
+                        System.currentTimeMillis() + ConcurrencyLimiter.RETRY_DELAY_MS);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Put a batch that was not sent into the offline queue
+     *
+     * @param keepBatchId Whether the queued items stay grouped as one batch
+     */
+    private void queueBatch(List<BatchItem> batch, String forwarderType, String queueConfig, boolean keepBatchId,
+            long nextAttemptAt) {
+        String batchId = keepBatchId ? UUID.randomUUID().toString() : null;
+        for (BatchItem item : batch) {
+            if (!takeBackup(item)) {
+                continue; // Already picked up by the offline queue
+            }
+            queueProcessor.enqueueFailedMessage(item.fromNumber, item.content, item.timestamp,
+                    forwarderType, queueConfig, batchId, nextAttemptAt);
+        }
+    }
+
+    /**
+     * Record stats and history for batched messages and queue the ones that failed,
+     * unless the destination rejected them for good. Queued items are not retried
+     * before the delay the server asked for.
+     *
+     * @param keepBatchId Whether failed items stay grouped by batch in the offline queue
+     */
+    private MessageBatcher.Listener createBatchListener(ForwardingConfig config, String forwarderType,
+            boolean keepBatchId) {
+        return new MessageBatcher.Listener() {
+            @Override
+            public void onDelivered(BatchItem item) {
+                if (!takeBackup(item)) {
+                    Log.w(TAG, "Batched message was delivered after the offline queue picked up its backup");
+                }
+                statsDbHelper.recordForwardSuccess(forwarderType);
+                ForwarderMetrics.getInstance().recordDelivery(forwarderType, item.timestamp);
+                historyDbHelper.recordForwardSuccess(item.fromNumber, item.content, forwarderType,
+                        item.timestamp);
+            }
+
+            @Override
+            public void onFailed(BatchItem item, Throwable error, String batchId) {
+                if (!takeBackup(item)) {
+                    Log.d(TAG, "Failed batched message is already being retried by the offline queue");
+                    return;
+                }
+                statsDbHelper.recordForwardFailure(forwarderType);
+                historyDbHelper.recordForwardFailure(item.fromNumber, item.content, forwarderType,
+                        error.getMessage(), item.timestamp);
+                if (HttpStatusException.isPermanent(error)) {
+                    // The destination rejected the message itself - sending it again won't help
+                    Log.e(TAG, String.format("Batched forward for %s via %s permanently rejected: %s",
+                            item.fromNumber, forwarderType, error.getMessage()));
+                    return;
+                }
+                long retryAfterMs = HttpStatusException.getRetryAfterMs(error);
+                long now = System.currentTimeMillis();
+                queueProcessor.enqueueFailedMessage(item.fromNumber, item.content, item.timestamp,
+                        forwarderType, config.getQueueConfig(forwarderType), keepBatchId ? batchId : null,
+                        retryAfterMs >= 0 ? now + retryAfterMs : now);
+            }
+        };
+    }
+
+    /**
+     * Handle a fully assembled incoming SMS. Filtering and rate limiting happen
+     * on the calling thread, delivery happens on the shared forwarder executor.
+     * Rate-limited messages wait in memory until their bucket has a permit.
+     */
+    public void handleIncomingMessage(String fromNumber, String messageContent, long timestamp) {
+        // Make sure the queue processor is running even if the application
+        // was started directly for this broadcast
+        if (!queueProcessor.isRunning()) {
+            queueProcessor.start();
+        }
+
+        ForwardingConfig config = getConfig();
+
+        // TODO: add a dedicated preference item for reverse forwarding
+        // Disables reverse forwarding too if no forwarders is enabled.
+        if (!config.hasEnabledPlatform())
+            return;
+
+        // Check content filter - block message if it contains filtered keywords
+        String blockingKeyword = SmsContentFilter.findBlockingKeyword(messageContent, config.keywordFilter);
+        if (blockingKeyword != null) {
+            Log.i(TAG, String.format("Message from %s blocked by content filter keyword '%s'",
+                    fromNumber, blockingKeyword));
+            return; // Don't forward the message
+        }
+
+        // Check include/exclude rules on sender and content
+        if (config.filterRules.findBlockingRule(fromNumber, messageContent) != null) {
+            Log.i(TAG, String.format("Message from %s blocked by filter rules", fromNumber));
+            return;
+        }
+
+        // Number Whitelist Filtering
+        if (config.whitelistEnabled) {
+            if (SmsNumberFilter.shouldBlockNumber(fromNumber, config.numberFilter)) {
+                Log.d(TAG, "Message from " + fromNumber + " blocked by number whitelist.");
+                return; // Stop processing, number not in whitelist
+            }
+        }
+
+        List<RetryableForwarder> forwarders = config.getForwarders();
+        boolean enableRateLimiting = config.rateLimitingEnabled;
+
+        if (fromNumber.equals(config.targetNumber)) {
+            handleReverseMessage(fromNumber, messageContent, enableRateLimiting);
+        } else {
+            for (RetryableForwarder forwarder : forwarders) {
+                // Normal message, forwarded - check the rate limit of this destination first if enabled
+                String forwarderType = forwarder.getDelegateName();
+                String destination = config.getDestination(forwarderType);
+                if (enableRateLimiting && (parkedCounts.containsKey(bucketKey(forwarderType, destination))
+                        || !rateLimiter.tryAcquire(forwarderType, destination, 1))) {
+                    // Wait in memory for a permit, behind the messages already waiting for this bucket
+                    park(config, forwarder, fromNumber, messageContent, timestamp);
+                    continue;
+                }
+                dispatch(config, forwarder, fromNumber, messageContent, timestamp);
+            }
+        }
+    }
+
+    /**
+     * Hand a message that passed the rate limit to its batcher or the forwarder executor
+     */
+    private void dispatch(ForwardingConfig config, RetryableForwarder forwarder, String fromNumber,
+            String messageContent, long timestamp) {
+        // Batch and digest modes: the batcher reports each item's outcome itself
+        MessageBatcher webBatcher = webhookBatcher;
+        if (webBatcher != null && forwarder.getDelegate() instanceof JsonWebForwarder) {
+            webBatcher.add(withBackup(config, forwarder.getDelegateName(), config.webBatchWindowMs,
+                    fromNumber, messageContent, timestamp));
+            return;
+        }
+        MessageBatcher emailBatcher = emailDigestBatcher;
+        if (emailBatcher != null && forwarder.getDelegate() instanceof EmailForwarder) {
+            emailBatcher.add(withBackup(config, forwarder.getDelegateName(), config.emailDigestWindowMs,
+                    fromNumber, messageContent, timestamp));
+            return;
+        }
+        try {
+            forwarderExecutor.execute(() -> {
+                try {
+                    forwarder.forward(fromNumber, messageContent, timestamp);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to forward SMS", e);
+                    enqueue(config, forwarder, fromNumber, messageContent, timestamp, "failed");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor is saturated (or shutting down) - let the offline queue pick it up
+            Log.w(TAG, "Forwarder executor saturated, queueing message via "
+                    + forwarder.getDelegateName());
+            enqueue(config, forwarder, fromNumber, messageContent, timestamp, "saturated");
+        }
+    }
+
+    /**
+     * Hold a rate-limited message in the delay wheel until the permit it waits for is
+     * available. A backup in the offline queue becomes due shortly after that time, so
+     * the message is still sent if the process dies in between. The backup is written
+     * on the background thread, not the calling (broadcast) thread.
+     */
+    private void park(ForwardingConfig config, RetryableForwarder forwarder, String fromNumber,
+            String messageContent, long timestamp) {
+        String forwarderType = forwarder.getDelegateName();
+        if (delayScheduler.size() >= MAX_PARKED_MESSAGES) {
+            // The queue defers it until the bucket refills
+            enqueue(config, forwarder, fromNumber, messageContent, timestamp, "rate-limited");
+            return;
+        }
+        ParkedMessage parkedMessage = new ParkedMessage(config, forwarder, fromNumber, messageContent, timestamp);
+        long waitMs = parkedMessage.reserve();
+        parkedMessage.backup = writeBackup(config, forwarderType, fromNumber, messageContent, timestamp,
+                System.currentTimeMillis() + waitMs + BACKUP_GRACE_MS);
+        if (!delayScheduler.schedule(waitMs, parkedMessage)) {
+            parkedMessage.release();
+            runInBackground(parkedMessage::fallBackToQueue);
+            return;
+        }
+        Log.d(TAG, "Parked rate-limited message for " + waitMs + " ms via " + forwarderType);
+    }
+
+    /**
+     * Create a batch item with a backup in the offline queue, so the message is
+     * still sent if the process dies while it waits for its batch. The backup is
+     * written on the background thread and becomes due shortly after the window.
+     */
+    private BatchItem withBackup(ForwardingConfig config, String forwarderType, long windowMs, String fromNumber,
+            String messageContent, long timestamp) {
+        BatchItem item = new BatchItem(fromNumber, messageContent, timestamp);
+        item.backup = writeBackup(config, forwarderType, fromNumber, messageContent, timestamp,
+                System.currentTimeMillis() + windowMs + BACKUP_GRACE_MS);
+        return item;
+    }
+
+    /**
+     * Take the backup of a batch item back from the offline queue before its outcome is handled
+     *
+     * @return false if the queue has already claimed the backup and now owns the message
+     */
+    private boolean takeBackup(BatchItem item) {
+        long backupId = getBackupId(item.backup);
+        return backupId < 0 || queueProcessor.takeBackup(backupId);
+    }
+
+    /**
+     * Write the offline queue backup of a message held in memory, on the background thread
+     *
+     * @return Yields the ID of the backup, or -1 if none was written
+     */
+    private FutureTask<Long> writeBackup(ForwardingConfig config, String forwarderType, String fromNumber,
+            String messageContent, long timestamp, long dueAt) {
+        FutureTask<Long> backup = new FutureTask<>(() -> queueProcessor.enqueueBackup(fromNumber, messageContent,
+                timestamp, forwarderType, config.getQueueConfig(forwarderType), dueAt));
+        if (!runInBackground(backup)) {
+            backup.cancel(false);
+        }
+        return backup;
+    }
+
+    /**
+     * Wait for a backup to be written
+     *
+     * @return ID of the backup, or -1 if there is none
+     */
+    private static long getBackupId(FutureTask<Long> backup) {
+        if (backup == null) {
+            return -1;
+        }
+        try {
+            return backup.get();
+        } catch (CancellationException | ExecutionException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static String bucketKey(String forwarderType, String destination) {
+        return forwarderType + "\n" + destination;
+    }
+
+    /**
+     * A rate-limited message waiting in the delay wheel. Runs on the wheel thread
+     * when its permit should be available, takes the permit and hands the rest,
+     * which touches the database, to the forwarder executor.
+     */
+    private final class ParkedMessage implements Runnable {
+        final ForwardingConfig config;
+        final RetryableForwarder forwarder;
+        final String fromNumber;
+        final String messageContent;
+        final long timestamp;
+        final String forwarderType;
+        final String destination;
+        final String key;
+        FutureTask<Long> backup; // Writes the offline queue backup, yields its ID
+
+        ParkedMessage(ForwardingConfig config, RetryableForwarder forwarder, String fromNumber,
+                String messageContent, long timestamp) {
+            this.config = config;
+            this.forwarder = forwarder;
+            this.fromNumber = fromNumber;
+            this.messageContent = messageContent;
+            this.timestamp = timestamp;
+            this.forwarderType = forwarder.getDelegateName();
+            this.destination = config.getDestination(forwarderType);
+            this.key = bucketKey(forwarderType, destination);
+        }
+
+        /**
+         * Take a place behind the messages already parked for this bucket
+         *
+         * @return Time until this message's permit is available
+         */
+        long reserve() {
+            int ahead = parkedCounts.merge(key, 1, Integer::sum) - 1;
+            return rateLimiter.getTimeUntilAvailable(forwarderType, destination, ahead + 1);
+        }
+
+        /**
+         * Leave the line for this bucket
+         */
+        void release() {
+            parkedCounts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+        }
+
+        @Override
+        public void run() {
+            if (!rateLimiter.getBucket(forwarderType, destination).tryAcquire(1)) {
+                // Another sender took the permit - wait for the next one
+                long waitMs = rateLimiter.getTimeUntilAvailable(forwarderType, destination, 1);
+                if (!delayScheduler.schedule(waitMs, this)) {
+                    release(); // Shutting down - the backup in the offline queue takes over
+                }
+                return;
+            }
+            release();
+            try {
+                forwarderExecutor.execute(this::deliver);
+            } catch (RejectedExecutionException e) {
+                // Executor is saturated (or shutting down) - the offline queue takes over
+                runInBackground(this::fallBackToQueue);
+            }
+        }
+
+        /**
+         * Take the backup back from the offline queue and send the message
+         */
+        private void deliver() {
+            long backupId = getBackupId(backup);
+            if (backupId >= 0 && !queueProcessor.takeBackup(backupId)) {
+                Log.d(TAG, "Parked message was already picked up by the offline queue");
+                return;
+            }
+            dispatch(config, forwarder, fromNumber, messageContent, timestamp);
+        }
+
+        /**
+         * Leave the message to the offline queue, queueing it now if it has no backup
+         */
+        void fallBackToQueue() {
+            if (getBackupId(backup) < 0) {
+                enqueue(config, forwarder, fromNumber, messageContent, timestamp, "rate-limited");
+            }
+        }
+    }
+
+    /**
+     * Reverse message: "To <number>:\n<content>" sent from the target number
+     */
+    private void handleReverseMessage(String fromNumber, String messageContent, boolean enableRateLimiting) {
+        Matcher matcher = REVERSE_MESSAGE_PATTERN.matcher(messageContent);
+        if (matcher.matches()) {
+            String forwardNumber = matcher.replaceFirst("$1");
+            String forwardContent = matcher.replaceFirst("$2");
+
+            // Reverse message - check the SMS rate limit first if enabled
+            if (enableRateLimiting &&
+                    !rateLimiter.tryAcquire(SmsForwarder.class.getSimpleName(), forwardNumber, 1)) {
+                parkReverseSms(forwardNumber, forwardContent);
+                return;
+            }
+            sendReverseSms(forwardNumber, forwardContent);
+        }
+    }
+
+    /**
+     * Hold a rate-limited reverse SMS in memory until the next SMS permit.
+     * Reverse SMS have no offline queue backup and are dropped if the wheel is full.
+     */
+    private void parkReverseSms(String forwardNumber, String forwardContent) {
+        long waitMs = rateLimiter.getTimeUntilNextSlot();
+        boolean parked = delayScheduler.size() < MAX_PARKED_MESSAGES && delayScheduler.schedule(waitMs, () -> {
+            if (rateLimiter.getBucket(SmsForwarder.class.getSimpleName(), null).tryAcquire(1)) {
+                sendReverseSms(forwardNumber, forwardContent);
+            } else {
+                parkReverseSms(forwardNumber, forwardContent);
+            }
+        });
+        if (!parked) {
+            Log.w(TAG, "Rate limit exceeded, dropping reverse SMS to " + forwardNumber);
+        }
+    }
+
+    private void sendReverseSms(String forwardNumber, String forwardContent) {
+        try {
+            forwarderExecutor.execute(() -> {
+                try {
+                    SmsForwarder.sendSmsTo(forwardNumber, forwardContent);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to send SMS", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Forwarder executor saturated, dropping reverse SMS to " + forwardNumber);
+        }
+    }
+
+    /**
+     * Wrap a forwarder with retry support backed by the shared executors and helpers
+     */
+    private RetryableForwarder wrap(Forwarder forwarder, String forwarderConfig) {
+        RetryableForwarder retryableForwarder = new RetryableForwarder(forwarder, queueProcessor, retryExecutor);
+        retryableForwarder.setForwarderConfig(forwarderConfig);
+        retryableForwarder.setStatsHelper(statsDbHelper);
+        retryableForwarder.setHistoryHelper(historyDbHelper);
+        return retryableForwarder;
+    }
+
+    /**
+     * Add a message to the offline queue for the given forwarder
+     */
+    private void enqueue(ForwardingConfig config, RetryableForwarder forwarder, String fromNumber,
+            String messageContent, long timestamp, String reason) {
+        try {
+            String forwarderType = forwarder.getDelegateName();
+            String forwarderConfig = config.getQueueConfig(forwarderType);
+            queueProcessor.enqueueFailedMessage(fromNumber, messageContent, timestamp, forwarderType,
+                    forwarderConfig);
+            Log.i(TAG, "Added " + reason + " message to offline queue via " + forwarderType);
+        } catch (Exception queueError) {
+            Log.e(TAG, "Failed to add " + reason + " message to offline queue: " + queueError.getMessage());
+        }
+    }
+
+    /**
+     * Run short database work, such as a stats read for the settings screen,
+     * off the calling (main) thread. Tasks run one at a time in order.
+     *
+     * @return false if the engine has been shut down and the task was dropped
+     */
+    public boolean runInBackground(Runnable task) {
+        try {
+            backgroundExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Engine shut down, dropping background task");
+            return false;
+        }
+    }
+
+    public MessageStatsDbHelper getStatsDbHelper() {
+        return statsDbHelper;
+    }
+
+    public MessageHistoryDbHelper getHistoryDbHelper() {
+        return historyDbHelper;
+    }
+
+    public MessageQueueProcessor getQueueProcessor() {
+        return queueProcessor;
+    }
+}
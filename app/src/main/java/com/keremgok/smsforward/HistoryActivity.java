@@ -0,0 +1,226 @@
+package com.keremgok.smsforward;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows the forwarding history as a list that loads pages on demand.
+ * Pages are read with a keyset cursor on a background thread, so the screen
+ * stays responsive and only keeps the records scrolled through in memory.
+ */
+public class HistoryActivity extends AppCompatActivity {
+    private static final String TAG = "HistoryActivity";
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 15; // Load the next page this many rows before the end
+    private static final long SEARCH_DELAY_MS = 300; // Wait for typing to pause before searching
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable reloadRunnable = this::reload;
+
+    private MessageHistoryDbHelper historyDbHelper;
+    private ExecutorService loader;
+    private HistoryAdapter adapter;
+    private LinearLayoutManager layoutManager;
+    private RecyclerView listView;
+    private TextView summaryView;
+    private TextView emptyView;
+    private EditText searchView;
+
+    // Paging state, only touched on the main thread
+    private String query;
+    private MessageHistoryDbHelper.HistoryCursor nextCursor;
+    private boolean hasMore = true;
+    private boolean loading;
+    private int generation; // Incremented for every new search so late pages of an older one are ignored
+
+    /**
+     * Create an intent that opens the history screen
+     */
+    public static Intent createIntent(Context context) {
+        return new Intent(context, HistoryActivity.class);
+    }
+
+    @Override
+    protected void attachBaseContext(Context newBase) {
+        super.attachBaseContext(LanguageManager.wrapContext(newBase));
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        // Initialize theme before calling super.onCreate()
+        ThemeManager.initializeTheme(this);
+
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_history);
+        setTitle(R.string.message_history_title);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+
+        historyDbHelper = new MessageHistoryDbHelper(this);
+        loader = Executors.newSingleThreadExecutor();
+
+        summaryView = findViewById(R.id.history_summary);
+        emptyView = findViewById(R.id.history_empty);
+        searchView = findViewById(R.id.history_search);
+        listView = findViewById(R.id.history_list);
+
+        adapter = new HistoryAdapter();
+        layoutManager = new LinearLayoutManager(this);
+        listView.setLayoutManager(layoutManager);
+        listView.setAdapter(adapter);
+        listView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (dy > 0) {
+                    loadMoreIfNeeded();
+                }
+            }
+        });
+
+        searchView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mainHandler.removeCallbacks(reloadRunnable);
+                mainHandler.postDelayed(reloadRunnable, SEARCH_DELAY_MS);
+            }
+        });
+
+        loadSummary();
+        reload();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        // Let the main screen ask for authentication again before showing history
+        if (new SecurityManager(this).needsAuthentication()) {
+            finish();
+        }
+    }
+
+    @Override
+    public boolean onSupportNavigateUp() {
+        finish();
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacksAndMessages(null);
+        // Close the database after any page that is still loading
+        loader.execute(historyDbHelper::close);
+        loader.shutdown();
+    }
+
+    /**
+     * Start over from the newest record with the current search text
+     */
+    private void reload() {
+        generation++;
+        String text = searchView.getText().toString().trim();
+        query = text.isEmpty() ? null : text;
+        nextCursor = null;
+        hasMore = true;
+        loading = false;
+        adapter.clear();
+        loadNextPage();
+    }
+
+    private void loadMoreIfNeeded() {
+        if (loading || !hasMore) {
+            return;
+        }
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (lastVisible >= adapter.getItemCount() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    private void loadNextPage() {
+        loading = true;
+        final int requestGeneration = generation;
+        final String requestQuery = query;
+        final MessageHistoryDbHelper.HistoryCursor requestCursor = nextCursor;
+        loader.execute(() -> {
+            MessageHistoryDbHelper.HistoryPage page = null;
+            try {
+                page = historyDbHelper.searchHistory(requestQuery, null, null, 0, 0, PAGE_SIZE, requestCursor);
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading message history", e);
+            }
+            final MessageHistoryDbHelper.HistoryPage result = page;
+            mainHandler.post(() -> onPageLoaded(requestGeneration, result));
+        });
+    }
+
+    private void onPageLoaded(int requestGeneration, MessageHistoryDbHelper.HistoryPage page) {
+        if (requestGeneration != generation || isDestroyed()) {
+            return;
+        }
+        loading = false;
+        if (page == null) {
+            hasMore = false;
+            Toast.makeText(this, getString(R.string.history_load_error), Toast.LENGTH_LONG).show();
+        } else {
+            adapter.addRecords(page.records);
+            nextCursor = page.nextCursor;
+            hasMore = page.hasMore();
+        }
+
+        boolean empty = adapter.getItemCount() == 0;
+        emptyView.setText(query == null ? R.string.history_empty : R.string.history_no_results);
+        emptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+        listView.setVisibility(empty ? View.GONE : View.VISIBLE);
+
+        // Keep loading until the screen is filled
+        listView.post(this::loadMoreIfNeeded);
+    }
+
+    private void loadSummary() {
+        loader.execute(() -> {
+            MessageHistoryDbHelper.HistoryStats stats;
+            try {
+                stats = historyDbHelper.getHistoryStats();
+            } catch (Exception e) {
+                Log.e(TAG, "Error loading history statistics", e);
+                return;
+            }
+            mainHandler.post(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                summaryView.setText(String.format(getString(R.string.history_stats_format),
+                        stats.totalCount, stats.successCount, stats.getSuccessRate(), stats.failedCount)
+                        + "\n" + stats.getTimeSpanDescription());
+            });
+        });
+    }
+}
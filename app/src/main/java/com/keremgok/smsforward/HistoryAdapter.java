@@ -0,0 +1,81 @@
+package com.keremgok.smsforward;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binds history records loaded so far to the rows of the history list
+ */
+public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHolder> {
+    private final List<MessageHistoryDbHelper.HistoryRecord> records = new ArrayList<>();
+
+    /**
+     * Append a page of records to the end of the list
+     */
+    public void addRecords(List<MessageHistoryDbHelper.HistoryRecord> page) {
+        if (page.isEmpty()) {
+            return;
+        }
+        int start = records.size();
+        records.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    /**
+     * Remove all records
+     */
+    public void clear() {
+        int count = records.size();
+        records.clear();
+        notifyItemRangeRemoved(0, count);
+    }
+
+    @Override
+    public int getItemCount() {
+        return records.size();
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_history, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        MessageHistoryDbHelper.HistoryRecord record = records.get(position);
+        holder.header.setText(record.getStatusEmoji() + " " + record.getPlatformEmoji() + " " +
+                record.platform.toUpperCase() + " - " + record.getFormattedForwardTimestamp());
+        holder.from.setText(holder.itemView.getContext().getString(R.string.history_item_from, record.fromNumber));
+        holder.content.setText(record.messageContent);
+        if (record.isFailed() && record.errorMessage != null) {
+            holder.error.setText(holder.itemView.getContext().getString(R.string.history_item_error,
+                    record.errorMessage));
+            holder.error.setVisibility(View.VISIBLE);
+        } else {
+            holder.error.setVisibility(View.GONE);
+        }
+    }
+
+    static final class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView header;
+        final TextView from;
+        final TextView content;
+        final TextView error;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            header = itemView.findViewById(R.id.history_item_header);
+            from = itemView.findViewById(R.id.history_item_from);
+            content = itemView.findViewById(R.id.history_item_content);
+            error = itemView.findViewById(R.id.history_item_error);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.keremgok.smsforward;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes message history records on a single background thread.
+ * Records are queued without touching the database and committed in group
+ * transactions of up to {@link #MAX_BATCH_SIZE} records or
+ * {@link #MAX_BATCH_DELAY_MS}, whichever comes first. When the queue is full
+ * the caller waits at most {@link #BACKPRESSURE_TIMEOUT_MS}; after that the
+ * record is dropped, so delivery threads are never held up by slow storage.
+ */
+public class HistoryWriter {
+    private static final String TAG = "HistoryWriter";
+    private static final int QUEUE_CAPACITY = 1000; // Records waiting to be written
+    private static final int MAX_BATCH_SIZE = 100; // Records per transaction
+    private static final long MAX_BATCH_DELAY_MS = 250; // Longest a record waits for its batch to fill
+    private static final long BACKPRESSURE_TIMEOUT_MS = 50; // Longest a caller waits for room in the queue
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    /**
+     * Persists a batch of records in one transaction
+     */
+    public interface Sink {
+        void write(List<ContentValues> records);
+    }
+
+    private final Sink sink;
+    private final BlockingQueue<ContentValues> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    public HistoryWriter(Sink sink) {
+        this.sink = sink;
+        this.writerThread = new Thread(this::run, TAG);
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queue a record for writing
+     *
+     * @return false if the record was dropped because the queue stayed full or the writer is closed
+     */
+    public boolean add(ContentValues record) {
+        if (!running) {
+            return false;
+        }
+        try {
+            if (queue.offer(record, BACKPRESSURE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = droppedCount.incrementAndGet();
+        Log.w(TAG, "History queue full, dropped record (" + dropped + " dropped so far)");
+        return false;
+    }
+
+    /**
+     * Get the number of records dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stop accepting records, write everything still queued and stop the writer thread
+     */
+    public void close() {
+        running = false;
+        writerThread.interrupt();
+        try {
+            writerThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            Log.w(TAG, "History writer did not finish in time, " + queue.size() + " record(s) lost");
+        }
+    }
+
+    private void run() {
+        List<ContentValues> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                ContentValues first = queue.take();
+                batch.add(first);
+                // Group commit: collect whatever arrives shortly after the first record
+                long deadline = System.currentTimeMillis() + MAX_BATCH_DELAY_MS;
+                while (batch.size() < MAX_BATCH_SIZE) {
+                    long wait = deadline - System.currentTimeMillis();
+                    ContentValues next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Closing - fall through and write what was collected
+            }
+            writeBatch(batch);
+        }
+
+        // Flush on shutdown
+        queue.drainTo(batch);
+        while (!batch.isEmpty()) {
+            List<ContentValues> chunk = new ArrayList<>(batch.subList(0, Math.min(MAX_BATCH_SIZE, batch.size())));
+            batch.subList(0, chunk.size()).clear();
+            writeBatch(chunk);
+        }
+    }
+
+    private void writeBatch(List<ContentValues> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            sink.write(batch);
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing " + batch.size() + " history record(s)", e);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,78 @@
+package com.keremgok.smsforward;
+
+import java.io.IOException;
+
+/**
+ * A web forwarder request that reached the server but was not accepted.
+ * Retryable rejections (408, 425, 429 and most 5xx) carry the delay the
+ * server asked for, if it sent one; anything else is permanent and will not
+ * succeed when sent again.
+ */
+public class HttpStatusException extends IOException {
+    public final int statusCode;
+    public final boolean retryable;
+    public final long retryAfterMs; // Delay requested by the server, or -1 if it gave none
+
+    public HttpStatusException(int statusCode, long retryAfterMs, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryable = isRetryableStatus(statusCode);
+        this.retryAfterMs = retryable ? retryAfterMs : -1;
+    }
+
+    /**
+     * Whether a request rejected with this status may succeed when sent again later
+     */
+    public static boolean isRetryableStatus(int statusCode) {
+        switch (statusCode) {
+            case 408: // Request Timeout
+            case 425: // Too Early
+            case 429: // Too Many Requests
+                return true;
+            case 501: // Not Implemented
+            case 505: // HTTP Version Not Supported
+                return false;
+            default:
+                return statusCode >= 500 && statusCode < 600;
+        }
+    }
+
+    /**
+     * Whether the server rejected the request because it is overloaded
+     */
+    public boolean isOverload() {
+        return statusCode == 429 || (retryable && statusCode >= 500);
+    }
+
+    /**
+     * Find the HTTP rejection behind a failure
+     *
+     * @return The rejection, or null if the failure is not an HTTP rejection
+     */
+    public static HttpStatusException find(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpStatusException) {
+                return (HttpStatusException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a failure is an HTTP rejection that retrying cannot fix
+     */
+    public static boolean isPermanent(Throwable error) {
+        HttpStatusException rejection = find(error);
+        return rejection != null && !rejection.retryable;
+    }
+
+    /**
+     * Get the delay the server asked for before retrying
+     *
+     * @return Delay in milliseconds, or -1 if the failure carries none
+     */
+    public static long getRetryAfterMs(Throwable error) {
+        HttpStatusException rejection = find(error);
+        return rejection != null ? rejection.retryAfterMs : -1;
+    }
+}
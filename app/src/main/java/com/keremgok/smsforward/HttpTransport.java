@@ -0,0 +1,38 @@
+package com.keremgok.smsforward;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Pluggable HTTP transport used by {@link AbstractWebForwarder} subclasses.
+ * Implementations are shared by all web forwarders and are expected to keep
+ * connections alive between requests.
+ */
+public interface HttpTransport {
+
+    /**
+     * POST a request body and return the fully read response
+     *
+     * @param url         Endpoint to post to
+     * @param contentType Value of the Content-Type header
+     * @param body        Request body
+     * @return The response status, headers of interest and body
+     * @throws IOException if the request could not be completed
+     */
+    Response post(URL url, String contentType, byte[] body) throws IOException;
+
+    /**
+     * HTTP response returned by a transport
+     */
+    final class Response {
+        public final int statusCode;
+        public final String retryAfter; // Raw Retry-After header, or null
+        public final String body;
+
+        public Response(int statusCode, String retryAfter, String body) {
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+            this.body = body;
+        }
+    }
+}
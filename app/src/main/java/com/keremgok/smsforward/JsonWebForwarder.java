@@ -2,10 +2,12 @@ package com.keremgok.smsforward;
 
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public final class JsonWebForwarder extends AbstractWebForwarder {
     private static final String TAG = "JsonWebForwarder";
@@ -15,50 +17,94 @@ public final class JsonWebForwarder extends AbstractWebForwarder {
     }
 
     @Override
-    protected byte[] makeBody(String fromNumber, String content) {
-        return makeBody(fromNumber, content, System.currentTimeMillis());
-    }
-
     protected byte[] makeBody(String fromNumber, String content, long timestamp) {
-        JSONObject body = new JSONObject();
         try {
-            java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("dd/MM/yyyy HH:mm:ss",
-                    java.util.Locale.getDefault());
-            String formattedDate = dateFormat.format(new java.util.Date(timestamp));
-
-            body.put("from", fromNumber);
-            body.put("message", content);
-            body.put("received_at", formattedDate);
-            body.put("timestamp", timestamp);
+            return makeItem(fromNumber, content, timestamp).toString().getBytes(StandardCharsets.UTF_8);
         } catch (JSONException e) {
             Log.wtf(TAG, e);
             throw new RuntimeException(e);
         }
-        return body.toString().getBytes(StandardCharsets.UTF_8);
     }
 
-    @Override
-    public void forward(String fromNumber, String content, long timestamp) throws Exception {
-        byte[] body = makeBody(fromNumber, content, timestamp);
+    private JSONObject makeItem(String fromNumber, String content, long timestamp) throws JSONException {
+        java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("dd/MM/yyyy HH:mm:ss",
+                java.util.Locale.getDefault());
+        String formattedDate = dateFormat.format(new java.util.Date(timestamp));
 
-        java.net.HttpURLConnection connection = (java.net.HttpURLConnection) endpoint.openConnection();
-        try {
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.setDoOutput(true);
-            connection.setDoInput(false);
-            connection.setRequestProperty("Content-Type", getContentType());
+        JSONObject item = new JSONObject();
+        item.put("from", fromNumber);
+        item.put("message", content);
+        item.put("received_at", formattedDate);
+        item.put("timestamp", timestamp);
+        return item;
+    }
+
+    /**
+     * Send several messages as one JSON array request. Each element is the
+     * single-message body plus an "id" holding its index in the batch.
+     * <p>
+     * The endpoint may report per-item results with a body of the form
+     * {@code {"results": [{"id": 0, "success": true}, {"id": 1, "success": false, "error": "..."}]}}
+     * (or just the array). Items it leaves out or marks unsuccessful are
+     * reported as failed; without such a body a 2xx response means every item
+     * was delivered.
+     *
+     * @param items Messages to send
+     * @return One entry per item: null if delivered, otherwise the error message
+     * @throws Exception if the request itself failed
+     */
+    public String[] forwardBatch(List<BatchItem> items) throws Exception {
+        JSONArray body = new JSONArray();
+        for (int i = 0; i < items.size(); i++) {
+            BatchItem item = items.get(i);
+            body.put(makeItem(item.fromNumber, item.content, item.timestamp).put("id", i));
+        }
+
+        HttpTransport.Response response = post(body.toString().getBytes(StandardCharsets.UTF_8));
+        Log.d(TAG, String.format("batch response: items=%d status=%d", items.size(), response.statusCode));
+        checkStatus(response);
+        return parseBatchResults(response.body, items.size());
+    }
 
-            try (java.io.OutputStream out = connection.getOutputStream()) {
-                out.write(body);
-                out.flush();
+    private static String[] parseBatchResults(String responseBody, int itemCount) {
+        String[] errors = new String[itemCount];
+
+        JSONArray results = null;
+        try {
+            String trimmed = responseBody == null ? "" : responseBody.trim();
+            if (trimmed.startsWith("[")) {
+                results = new JSONArray(trimmed);
+            } else if (trimmed.startsWith("{")) {
+                results = new JSONObject(trimmed).optJSONArray("results");
             }
+        } catch (JSONException e) {
+            Log.d(TAG, "Batch response is not a result mapping, treating all items as delivered");
+        }
+        if (results == null) {
+            return errors; // No per-item mapping, whole batch accepted
+        }
 
-            int status = connection.getResponseCode();
-            Log.d(TAG, String.format("response: status=%d", status));
-        } finally {
-            connection.disconnect();
+        boolean[] reported = new boolean[itemCount];
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null) {
+                continue;
+            }
+            int id = result.optInt("id", -1);
+            if (id < 0 || id >= itemCount) {
+                continue;
+            }
+            reported[id] = true;
+            if (!result.optBoolean("success", true)) {
+                errors[id] = result.optString("error", "Rejected by endpoint");
+            }
+        }
+        for (int i = 0; i < itemCount; i++) {
+            if (!reported[i]) {
+                errors[i] = "Missing from batch response";
+            }
         }
+        return errors;
     }
 
     @Override
@@ -0,0 +1,191 @@
+package com.keremgok.smsforward;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton that finds any of a set of keywords in a text in a
+ * single pass, independent of the number of keywords. Built once per keyword
+ * list; matching is case-insensitive and does not allocate.
+ * Instances are immutable and safe to share between threads.
+ */
+public final class KeywordMatcher {
+    private static final int ROOT = 0;
+
+    public static final KeywordMatcher EMPTY = new KeywordMatcher(new ArrayList<>());
+
+    private final String[] keywords; // As entered, reported on a match
+    // Transitions of state s are edgeChars/edgeTargets[edgeStart[s] .. edgeStart[s + 1]), sorted by char
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] failure; // Longest proper suffix of the state's path that is also a trie path
+    private final int[] match; // Keyword ending at this state or one of its suffixes, or -1
+
+    /**
+     * Build a matcher for the given keywords. Blank keywords are ignored.
+     */
+    public static KeywordMatcher compile(Collection<String> keywords) {
+        // Folded keyword -> keyword as entered, without duplicates
+        Map<String, String> unique = new LinkedHashMap<>();
+        for (String keyword : keywords) {
+            String trimmed = keyword.trim();
+            if (!trimmed.isEmpty()) {
+                unique.putIfAbsent(fold(trimmed), trimmed);
+            }
+        }
+        if (unique.isEmpty()) {
+            return EMPTY;
+        }
+        return new KeywordMatcher(new ArrayList<>(unique.entrySet()));
+    }
+
+    private KeywordMatcher(List<Map.Entry<String, String>> entries) {
+        keywords = new String[entries.size()];
+
+        // Build the trie
+        List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> terminal = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        terminal.add(-1);
+        for (int k = 0; k < entries.size(); k++) {
+            keywords[k] = entries.get(k).getValue();
+            String folded = entries.get(k).getKey();
+            int state = ROOT;
+            for (int i = 0; i < folded.length(); i++) {
+                Integer next = trie.get(state).get(folded.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<>());
+                    terminal.add(-1);
+                    trie.get(state).put(folded.charAt(i), next);
+                }
+                state = next;
+            }
+            terminal.set(state, k);
+        }
+
+        // Flatten the transitions into sorted arrays
+        int stateCount = trie.size();
+        edgeStart = new int[stateCount + 1];
+        edgeChars = new char[stateCount - 1];
+        edgeTargets = new int[stateCount - 1];
+        int edge = 0;
+        for (int s = 0; s < stateCount; s++) {
+            edgeStart[s] = edge;
+            for (Map.Entry<Character, Integer> transition : trie.get(s).entrySet()) {
+                edgeChars[edge] = transition.getKey();
+                edgeTargets[edge] = transition.getValue();
+                edge++;
+            }
+        }
+        edgeStart[stateCount] = edge;
+
+        // Failure links and matches, breadth first so shorter paths are done first
+        failure = new int[stateCount];
+        match = new int[stateCount];
+        match[ROOT] = -1;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int e = edgeStart[ROOT]; e < edgeStart[ROOT + 1]; e++) {
+            int child = edgeTargets[e];
+            failure[child] = ROOT;
+            match[child] = terminal.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int e = edgeStart[state]; e < edgeStart[state + 1]; e++) {
+                int child = edgeTargets[e];
+                failure[child] = step(failure[state], edgeChars[e]);
+                match[child] = terminal.get(child) >= 0 ? terminal.get(child) : match[failure[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Whether there are no keywords to match
+     */
+    public boolean isEmpty() {
+        return keywords.length == 0;
+    }
+
+    /**
+     * Get the number of distinct keywords
+     */
+    public int size() {
+        return keywords.length;
+    }
+
+    /**
+     * Find the first keyword that occurs in the text
+     *
+     * @return The keyword as entered, or null if none occurs
+     */
+    public String findMatch(CharSequence text) {
+        if (text == null || keywords.length == 0) {
+            return null;
+        }
+        int state = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            state = step(state, fold(text.charAt(i)));
+            if (match[state] >= 0) {
+                return keywords[match[state]];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Follow the transition for c, falling back along failure links
+     */
+    private int step(int state, char c) {
+        while (true) {
+            int next = transition(state, c);
+            if (next >= 0) {
+                return next;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = failure[state];
+        }
+    }
+
+    private int transition(int state, char c) {
+        int low = edgeStart[state];
+        int high = edgeStart[state + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char midChar = edgeChars[mid];
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Case folding that does not depend on the locale, so I/ı/İ/i all match each other
+     */
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+        return new String(chars);
+    }
+}
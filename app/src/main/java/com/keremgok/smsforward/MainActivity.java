@@ -296,6 +296,30 @@ public class MainActivity extends AppCompatActivity {
                         });
             }
 
+            // Set up filter rules preference listener
+            androidx.preference.EditTextPreference filterRulesPreference = findPreference(getString(R.string.key_filter_rules));
+            if (filterRulesPreference != null) {
+                updateFilterRulesSummary(filterRulesPreference, filterRulesPreference.getText());
+
+                filterRulesPreference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                    @Override
+                    public boolean onPreferenceChange(Preference preference, Object newValue) {
+                        String rules = (String) newValue;
+
+                        // Reject rules that cannot be compiled
+                        String error = SmsRuleFilter.validate(rules);
+                        if (error != null) {
+                            Toast.makeText(getContext(), String.format(getString(R.string.filter_rules_invalid), error),
+                                    Toast.LENGTH_LONG).show();
+                            return false;
+                        }
+
+                        updateFilterRulesSummary((androidx.preference.EditTextPreference) preference, rules);
+                        return true;
+                    }
+                });
+            }
+
             // Set up export settings
             Preference exportSettingsPreference = findPreference(getString(R.string.key_export_settings));
             if (exportSettingsPreference != null) {
@@ -384,9 +408,9 @@ public class MainActivity extends AppCompatActivity {
         public void onDestroy() {
             super.onDestroy();
             // Cleanup to prevent memory leaks
+            // Monitoring itself stays on: the offline queue relies on it
             if (networkStatusManager != null) {
                 networkStatusManager.removeListener(this);
-                networkStatusManager.stopMonitoring();
             }
 
             // Close database helpers to free resources
@@ -493,8 +517,8 @@ public class MainActivity extends AppCompatActivity {
                     return;
                 }
 
-                // Initialize stats helper for test messages
-                MessageStatsDbHelper statsHelper = new MessageStatsDbHelper(getContext());
+                // Test messages are counted by the engine's shared stats helper
+                MessageStatsDbHelper statsHelper = ForwardingEngine.getInstance(getContext()).getStatsDbHelper();
 
                 // Send test message through all enabled forwarders
                 int successCount = 0;
@@ -676,98 +700,136 @@ public class MainActivity extends AppCompatActivity {
         }
 
         private void showMessageCounter() {
-            try {
-                MessageStatsDbHelper statsHelper = new MessageStatsDbHelper(getContext());
-
-                // Get today's stats
-                MessageStatsDbHelper.DailyStats todayStats = statsHelper.getTodayStats();
+            ForwardingEngine engine = ForwardingEngine.getInstance(getContext());
+            // Reading stats flushes pending counts - keep it off the main thread
+            engine.runInBackground(() -> {
+                String message;
+                try {
+                    message = buildMessageCounterText(engine.getStatsDbHelper());
+                } catch (Exception e) {
+                    message = "Error reading message statistics: " + e.getMessage();
+                }
+                String text = message;
+                runOnUiThreadIfAttached(() -> {
+                    Toast.makeText(getContext(), text, Toast.LENGTH_LONG).show();
+
+                    // Update the preference summary
+                    Preference messageCounterPreference = findPreference(getString(R.string.key_message_counter));
+                    if (messageCounterPreference != null) {
+                        updateMessageCounterSummary(messageCounterPreference);
+                    }
+                });
+            });
+        }
 
-                // Get total stats
-                MessageStatsDbHelper.TotalStats totalStats = statsHelper.getTotalStats();
+        private String buildMessageCounterText(MessageStatsDbHelper statsHelper) {
+            // Get today's stats
+            MessageStatsDbHelper.DailyStats todayStats = statsHelper.getTodayStats();
 
-                StringBuilder message = new StringBuilder();
+            // Get total stats
+            MessageStatsDbHelper.TotalStats totalStats = statsHelper.getTotalStats();
 
-                // Today's statistics
-                message.append("📊 Today's Messages:\n");
-                if (todayStats != null && todayStats.totalCount > 0) {
-                    message.append(String.format("  Total: %d\n", todayStats.totalCount));
-                    message.append(String.format("  Success: %d (%.1f%%)\n",
-                            todayStats.successCount, todayStats.getSuccessRate()));
-                    message.append(String.format("  Failed: %d\n", todayStats.failedCount));
-
-                    if (todayStats.smsCount > 0)
-                        message.append(String.format("  📱 SMS: %d\n", todayStats.smsCount));
-                    if (todayStats.telegramCount > 0)
-                        message.append(String.format("  📢 Telegram: %d\n", todayStats.telegramCount));
-                    if (todayStats.emailCount > 0)
-                        message.append(String.format("  📧 Email: %d\n", todayStats.emailCount));
-                    if (todayStats.webCount > 0)
-                        message.append(String.format("  🌐 Web API: %d\n", todayStats.webCount));
-                } else {
-                    message.append("  No messages forwarded today\n");
-                }
+            StringBuilder message = new StringBuilder();
 
-                message.append("\n");
-
-                // Total statistics
-                message.append("📈 All Time:\n");
-                if (totalStats.totalCount > 0) {
-                    message.append(String.format("  Total: %d\n", totalStats.totalCount));
-                    message.append(String.format("  Success: %d (%.1f%%)\n",
-                            totalStats.successCount, totalStats.getSuccessRate()));
-                    message.append(String.format("  Failed: %d\n", totalStats.failedCount));
-                    message.append(String.format("  Active Days: %d\n", totalStats.activeDays));
-                    message.append(String.format("  Daily Avg: %.1f\n", totalStats.getAveragePerDay()));
-
-                    message.append("\n  Platform Breakdown:\n");
-                    if (totalStats.smsCount > 0)
-                        message.append(String.format("  📱 SMS: %d\n", totalStats.smsCount));
-                    if (totalStats.telegramCount > 0)
-                        message.append(String.format("  📢 Telegram: %d\n", totalStats.telegramCount));
-                    if (totalStats.emailCount > 0)
-                        message.append(String.format("  📧 Email: %d\n", totalStats.emailCount));
-                    if (totalStats.webCount > 0)
-                        message.append(String.format("  🌐 Web API: %d\n", totalStats.webCount));
-                } else {
-                    message.append("  No messages forwarded yet\n");
-                }
+            // Today's statistics
+            message.append("📊 Today's Messages:\n");
+            if (todayStats != null && todayStats.totalCount > 0) {
+                message.append(String.format("  Total: %d\n", todayStats.totalCount));
+                message.append(String.format("  Success: %d (%.1f%%)\n",
+                        todayStats.successCount, todayStats.getSuccessRate()));
+                message.append(String.format("  Failed: %d\n", todayStats.failedCount));
+
+                if (todayStats.smsCount > 0)
+                    message.append(String.format("  📱 SMS: %d\n", todayStats.smsCount));
+                if (todayStats.telegramCount > 0)
+                    message.append(String.format("  📢 Telegram: %d\n", todayStats.telegramCount));
+                if (todayStats.emailCount > 0)
+                    message.append(String.format("  📧 Email: %d\n", todayStats.emailCount));
+                if (todayStats.webCount > 0)
+                    message.append(String.format("  🌐 Web API: %d\n", todayStats.webCount));
+            } else {
+                message.append("  No messages forwarded today\n");
+            }
 
-                Toast.makeText(getContext(), message.toString(), Toast.LENGTH_LONG).show();
+            message.append("\n");
+
+            // Total statistics
+            message.append("📈 All Time:\n");
+            if (totalStats.totalCount > 0) {
+                message.append(String.format("  Total: %d\n", totalStats.totalCount));
+                message.append(String.format("  Success: %d (%.1f%%)\n",
+                        totalStats.successCount, totalStats.getSuccessRate()));
+                message.append(String.format("  Failed: %d\n", totalStats.failedCount));
+                message.append(String.format("  Active Days: %d\n", totalStats.activeDays));
+                message.append(String.format("  Daily Avg: %.1f\n", totalStats.getAveragePerDay()));
+
+                message.append("\n  Platform Breakdown:\n");
+                if (totalStats.smsCount > 0)
+                    message.append(String.format("  📱 SMS: %d\n", totalStats.smsCount));
+                if (totalStats.telegramCount > 0)
+                    message.append(String.format("  📢 Telegram: %d\n", totalStats.telegramCount));
+                if (totalStats.emailCount > 0)
+                    message.append(String.format("  📧 Email: %d\n", totalStats.emailCount));
+                if (totalStats.webCount > 0)
+                    message.append(String.format("  🌐 Web API: %d\n", totalStats.webCount));
+            } else {
+                message.append("  No messages forwarded yet\n");
+            }
 
-                // Update the preference summary
-                Preference messageCounterPreference = findPreference(getString(R.string.key_message_counter));
-                if (messageCounterPreference != null) {
-                    updateMessageCounterSummary(messageCounterPreference);
+            // Latency since the app started
+            MetricsSnapshot metrics = ForwarderMetrics.getInstance().snapshot();
+            if (!metrics.isEmpty()) {
+                message.append("\n⏱️ Latency (since app start):\n");
+                for (String forwarderType : metrics.getForwarderTypes()) {
+                    MetricsSnapshot.ForwarderLatency latency = metrics.get(forwarderType);
+                    message.append(String.format("  %s\n", forwarderType.replace("Forwarder", "")));
+                    if (latency.attempt.count > 0)
+                        message.append(String.format("    Send: %s\n", latency.attempt.format()));
+                    if (latency.delivery.count > 0)
+                        message.append(String.format("    SMS to delivery: %s\n", latency.delivery.format()));
+                    if (latency.queueWait.count > 0)
+                        message.append(String.format("    Queue wait: %s\n", latency.queueWait.format()));
                 }
+            }
 
-            } catch (Exception e) {
-                Toast.makeText(getContext(), "Error reading message statistics: " + e.getMessage(),
-                        Toast.LENGTH_LONG).show();
+            return message.toString();
+        }
+
+        private void runOnUiThreadIfAttached(Runnable action) {
+            android.app.Activity activity = getActivity();
+            if (activity != null) {
+                activity.runOnUiThread(() -> {
+                    if (isAdded()) {
+                        action.run();
+                    }
+                });
             }
         }
 
         private void updateMessageCounterSummary(Preference preference) {
-            try {
-                MessageStatsDbHelper statsHelper = new MessageStatsDbHelper(getContext());
-                MessageStatsDbHelper.DailyStats todayStats = statsHelper.getTodayStats();
-                MessageStatsDbHelper.TotalStats totalStats = statsHelper.getTotalStats();
-
+            ForwardingEngine engine = ForwardingEngine.getInstance(getContext());
+            engine.runInBackground(() -> {
                 String summary;
-                if (todayStats != null && todayStats.totalCount > 0) {
-                    summary = String.format("Today: %d | Total: %d (%.1f%% success)",
-                            todayStats.totalCount, totalStats.totalCount, totalStats.getSuccessRate());
-                } else if (totalStats.totalCount > 0) {
-                    summary = String.format("Today: 0 | Total: %d (%.1f%% success)",
-                            totalStats.totalCount, totalStats.getSuccessRate());
-                } else {
-                    summary = "No messages forwarded yet";
+                try {
+                    MessageStatsDbHelper statsHelper = engine.getStatsDbHelper();
+                    MessageStatsDbHelper.DailyStats todayStats = statsHelper.getTodayStats();
+                    MessageStatsDbHelper.TotalStats totalStats = statsHelper.getTotalStats();
+
+                    if (todayStats != null && todayStats.totalCount > 0) {
+                        summary = String.format("Today: %d | Total: %d (%.1f%% success)",
+                                todayStats.totalCount, totalStats.totalCount, totalStats.getSuccessRate());
+                    } else if (totalStats.totalCount > 0) {
+                        summary = String.format("Today: 0 | Total: %d (%.1f%% success)",
+                                totalStats.totalCount, totalStats.getSuccessRate());
+                    } else {
+                        summary = "No messages forwarded yet";
+                    }
+                } catch (Exception e) {
+                    summary = "Error reading statistics";
                 }
-
-                preference.setSummary(summary);
-
-            } catch (Exception e) {
-                preference.setSummary("Error reading statistics");
-            }
+                String text = summary;
+                runOnUiThreadIfAttached(() -> preference.setSummary(text));
+            });
         }
 
         private void updateLanguageSummary(androidx.preference.ListPreference preference) {
@@ -836,16 +898,26 @@ public class MainActivity extends AppCompatActivity {
             }
         }
 
+        private void updateFilterRulesSummary(androidx.preference.EditTextPreference preference, String rules) {
+            int count = SmsRuleFilter.getRuleCount(rules);
+            if (count > 0) {
+                preference.setSummary(String.format(getString(R.string.filter_rules_active_summary), count));
+            } else {
+                preference.setSummary(getString(R.string.filter_rules_summary));
+            }
+        }
+
         private void showRateLimitStatus() {
             try {
                 RateLimiter rateLimiter = RateLimiter.getInstance();
 
                 int currentCount = rateLimiter.getCurrentForwardCount();
+                int limit = rateLimiter.getSmsLimitPerMinute();
                 long timeUntilNext = rateLimiter.getTimeUntilNextSlot();
 
                 StringBuilder message = new StringBuilder();
                 message.append("🚦 Rate Limiting Status:\n\n");
-                message.append(String.format("Current usage: %d/10 SMS per minute\n", currentCount));
+                message.append(String.format("Current usage: %d/%d SMS per minute\n", currentCount, limit));
 
                 if (timeUntilNext > 0) {
                     long seconds = timeUntilNext / 1000;
@@ -854,10 +926,11 @@ public class MainActivity extends AppCompatActivity {
                     message.append("✅ Slots available immediately\n");
                 }
 
-                if (currentCount >= 10) {
+                if (currentCount >= limit) {
                     message.append("\n⚠️ Rate limit reached! SMS forwarding temporarily blocked.");
-                } else if (currentCount >= 7) {
-                    message.append("\n⚠️ Approaching rate limit. Be careful not to exceed 10 SMS per minute.");
+                } else if (currentCount * 10 >= limit * 7) {
+                    message.append(String.format(
+                            "\n⚠️ Approaching rate limit. Be careful not to exceed %d SMS per minute.", limit));
                 } else {
                     message.append("\n✅ Within safe limits for SMS forwarding.");
                 }
@@ -900,7 +973,7 @@ public class MainActivity extends AppCompatActivity {
                 }
 
                 String summary = String.format(getString(R.string.rate_limit_status_format),
-                        currentCount, nextSlotText);
+                        currentCount, nextSlotText, rateLimiter.getSmsLimitPerMinute());
 
                 preference.setSummary(summary);
 
@@ -1081,116 +1154,10 @@ public class MainActivity extends AppCompatActivity {
         }
 
         /**
-         * Show message history dialog
+         * Open the message history screen
          */
         private void showMessageHistory() {
-            try {
-                List<MessageHistoryDbHelper.HistoryRecord> history = historyDbHelper.getMessageHistory(100);
-
-                if (history.isEmpty()) {
-                    Toast.makeText(getContext(), getString(R.string.history_empty), Toast.LENGTH_SHORT).show();
-                    return;
-                }
-
-                // Build message history display
-                StringBuilder historyText = new StringBuilder();
-                MessageHistoryDbHelper.HistoryStats stats = historyDbHelper.getHistoryStats();
-
-                // Add header with statistics
-                historyText.append("📊 History Statistics:\n");
-                historyText.append(String.format(getString(R.string.history_stats_format),
-                        stats.totalCount, stats.successCount, stats.getSuccessRate(), stats.failedCount));
-                historyText.append("\n");
-                historyText.append("📅 Time span: ").append(stats.getTimeSpanDescription()).append("\n\n");
-
-                // Add recent messages (show last 20 for better readability)
-                historyText.append("📋 Recent Messages (Last 20):\n\n");
-
-                int displayCount = Math.min(history.size(), 20);
-                for (int i = 0; i < displayCount; i++) {
-                    MessageHistoryDbHelper.HistoryRecord record = history.get(i);
-
-                    historyText.append(record.getStatusEmoji()).append(" ")
-                            .append(record.getPlatformEmoji()).append(" ")
-                            .append(record.platform.toUpperCase()).append("\n");
-
-                    historyText.append("From: ").append(record.fromNumber).append("\n");
-
-                    // Truncate long messages for display
-                    String displayMessage = record.messageContent;
-                    if (displayMessage.length() > 100) {
-                        displayMessage = displayMessage.substring(0, 100) + "...";
-                    }
-                    historyText.append("Message: ").append(displayMessage).append("\n");
-
-                    historyText.append("Time: ").append(record.getFormattedForwardTimestamp()).append("\n");
-
-                    if (record.isFailed() && record.errorMessage != null) {
-                        historyText.append("Error: ").append(record.errorMessage).append("\n");
-                    }
-
-                    historyText.append("\n");
-                }
-
-                if (history.size() > 20) {
-                    historyText.append("... and ").append(history.size() - 20).append(" more messages\n");
-                }
-
-                // Show in dialog
-                AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
-                builder.setTitle("Message History")
-                        .setMessage(historyText.toString())
-                        .setPositiveButton("OK", null)
-                        .setNeutralButton("View All", new DialogInterface.OnClickListener() {
-                            @Override
-                            public void onClick(DialogInterface dialog, int which) {
-                                showFullMessageHistory();
-                            }
-                        })
-                        .show();
-
-            } catch (Exception e) {
-                Toast.makeText(getContext(), "Error loading message history: " + e.getMessage(),
-                        Toast.LENGTH_LONG).show();
-            }
-        }
-
-        /**
-         * Show full message history in a separate dialog
-         */
-        private void showFullMessageHistory() {
-            try {
-                List<MessageHistoryDbHelper.HistoryRecord> history = historyDbHelper.getMessageHistory(100);
-
-                StringBuilder fullHistoryText = new StringBuilder();
-                fullHistoryText.append("📋 Complete Message History (Last 100):\n\n");
-
-                for (MessageHistoryDbHelper.HistoryRecord record : history) {
-                    fullHistoryText.append(record.getStatusEmoji()).append(" ")
-                            .append(record.getPlatformEmoji()).append(" ")
-                            .append(record.platform.toUpperCase()).append(" - ")
-                            .append(record.getFormattedForwardTimestamp()).append("\n");
-
-                    fullHistoryText.append("From: ").append(record.fromNumber).append("\n");
-                    fullHistoryText.append("Content: ").append(record.messageContent).append("\n");
-
-                    if (record.isFailed() && record.errorMessage != null) {
-                        fullHistoryText.append("Error: ").append(record.errorMessage).append("\n");
-                    }
-
-                    fullHistoryText.append("────────────────────\n");
-                }
-
-                AlertDialog.Builder builder = new AlertDialog.Builder(getContext());
-                builder.setTitle("Complete Message History")
-                        .setMessage(fullHistoryText.toString())
-                        .setPositiveButton("OK", null)
-                        .show();
-
-            } catch (Exception e) {
-                Toast.makeText(getContext(), "Error loading full history: " + e.getMessage(),
-                        Toast.LENGTH_LONG).show();
-            }
+            startActivity(HistoryActivity.createIntent(getContext()));
         }
 
         /**
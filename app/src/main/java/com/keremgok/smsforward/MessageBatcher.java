@@ -0,0 +1,183 @@
+package com.keremgok.smsforward;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages for one destination and sends them together, either when
+ * the batch window expires or when the batch is full. Used for the webhook
+ * batch mode and the email digest mode. Results are reported per item so
+ * failed items can be queued individually. The scheduler only times the
+ * batch window; requests are sent on a separate executor so a slow
+ * destination can't hold up the timers.
+ */
+public class MessageBatcher {
+    private static final String TAG = "MessageBatcher";
+
+    /**
+     * Sends a complete batch in one request
+     */
+    public interface Sender {
+        /**
+         * @return One entry per item: null if delivered, otherwise the error message.
+         *         Null if the batch was handed on without being sent, e.g. to the
+         *         offline queue, and there is no outcome to report.
+         * @throws Exception if the whole batch failed
+         */
+        String[] send(List<BatchItem> batch) throws Exception;
+    }
+
+    /**
+     * Receives the outcome of every batched message
+     */
+    public interface Listener {
+        void onDelivered(BatchItem item);
+
+        /**
+         * @param error   Why the item failed: the failure of the whole request, such as
+         *                an {@link HttpStatusException}, or the error reported for this item
+         * @param batchId Identifies the batch the item was sent in, shared by
+         *                all items that failed together
+         */
+        void onFailed(BatchItem item, Throwable error, String batchId);
+    }
+
+    private final String name;
+    private final Sender sender;
+    private final ScheduledExecutorService scheduler;
+    private final Executor sendExecutor;
+    private final long windowMs;
+    private final int maxItems;
+    private final Listener listener;
+
+    private final Object lock = new Object();
+    private List<BatchItem> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * @param scheduler    Times the batch window
+     * @param sendExecutor Runs the batch requests
+     */
+    public MessageBatcher(String name, Sender sender, ScheduledExecutorService scheduler, Executor sendExecutor,
+            long windowMs, int maxItems, Listener listener) {
+        this.name = name;
+        this.sender = sender;
+        this.scheduler = scheduler;
+        this.sendExecutor = sendExecutor;
+        this.windowMs = Math.max(0, windowMs);
+        this.maxItems = Math.max(1, maxItems);
+        this.listener = listener;
+    }
+
+    /**
+     * Add a message to the current batch
+     */
+    public void add(String fromNumber, String content, long timestamp) {
+        add(new BatchItem(fromNumber, content, timestamp));
+    }
+
+    /**
+     * Add an item to the current batch
+     */
+    public void add(BatchItem item) {
+        List<BatchItem> ready = null;
+        synchronized (lock) {
+            pending.add(item);
+            if (pending.size() >= maxItems) {
+                ready = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flushAsync, windowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (ready != null) {
+            sendAsync(ready);
+        }
+    }
+
+    /**
+     * Send whatever is pending right now on the calling thread
+     */
+    public void flush() {
+        List<BatchItem> ready;
+        synchronized (lock) {
+            ready = takePending();
+        }
+        if (!ready.isEmpty()) {
+            send(ready);
+        }
+    }
+
+    /**
+     * Hand whatever is pending right now to the send executor
+     */
+    public void flushAsync() {
+        List<BatchItem> ready;
+        synchronized (lock) {
+            ready = takePending();
+        }
+        if (!ready.isEmpty()) {
+            sendAsync(ready);
+        }
+    }
+
+    private List<BatchItem> takePending() {
+        List<BatchItem> ready = pending;
+        pending = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return ready;
+    }
+
+    private void sendAsync(List<BatchItem> batch) {
+        try {
+            sendExecutor.execute(() -> send(batch));
+        } catch (RejectedExecutionException e) {
+            // Executor is saturated (or shutting down) - report the batch as failed so it gets queued
+            Log.w(TAG, String.format("%s batch of %d messages rejected by the send executor", name, batch.size()));
+            String batchId = UUID.randomUUID().toString();
+            for (BatchItem item : batch) {
+                listener.onFailed(item, e, batchId);
+            }
+        }
+    }
+
+    private void send(List<BatchItem> batch) {
+        String batchId = UUID.randomUUID().toString();
+        String[] errors;
+        try {
+            errors = sender.send(batch);
+        } catch (Exception e) {
+            Log.w(TAG, String.format("%s batch of %d messages failed: %s", name, batch.size(), e.getMessage()));
+            for (BatchItem item : batch) {
+                listener.onFailed(item, e, batchId);
+            }
+            return;
+        }
+        if (errors == null) {
+            Log.i(TAG, String.format("%s batch of %d messages handed on without sending", name, batch.size()));
+            return;
+        }
+
+        int failed = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] == null) {
+                listener.onDelivered(batch.get(i));
+            } else {
+                failed++;
+                listener.onFailed(batch.get(i), new IOException(errors[i]), batchId);
+            }
+        }
+        Log.i(TAG, String.format("Sent %s batch of %d messages (%d failed)", name, batch.size(), failed));
+    }
+}
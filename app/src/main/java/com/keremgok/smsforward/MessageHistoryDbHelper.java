@@ -7,6 +7,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import androidx.preference.PreferenceManager;
+
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -15,16 +17,22 @@ import java.util.Locale;
 
 /**
  * SQLite database helper for storing message forwarding history.
- * Maintains the last 100 forwarded messages for user review.
+ * History is a fixed-size ring: every record gets the next sequence number
+ * and is written to slot {@code sequence % capacity}, replacing the oldest
+ * record without counting rows. The old row is deleted explicitly before the
+ * insert, because INSERT OR REPLACE would skip the full-text index triggers.
+ * Records are written asynchronously in group transactions by {@link HistoryWriter}.
+ * Sender and message text are indexed in an FTS4 table for {@link #searchHistory}.
  */
 public class MessageHistoryDbHelper extends SQLiteOpenHelper {
     private static final String TAG = "MessageHistoryDbHelper";
     private static final String DATABASE_NAME = "sms_forward_history.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     // Table name and columns
     private static final String TABLE_MESSAGE_HISTORY = "message_history";
-    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_ID = "_id"; // Ring slot
+    private static final String COLUMN_SEQ = "seq"; // Ever-increasing record number
     private static final String COLUMN_FROM_NUMBER = "from_number";
     private static final String COLUMN_MESSAGE_CONTENT = "message_content";
     private static final String COLUMN_PLATFORM = "platform";
@@ -34,16 +42,26 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
     private static final String COLUMN_FORWARD_TIMESTAMP = "forward_timestamp";
     private static final String COLUMN_CREATED_AT = "created_at";
 
+    // Full-text index over the sender and message text, kept in sync by triggers
+    private static final String TABLE_MESSAGE_HISTORY_FTS = "message_history_fts";
+    private static final String COLUMN_DOCID = "docid";
+
     // Status values
     public static final String STATUS_SUCCESS = "SUCCESS";
     public static final String STATUS_FAILED = "FAILED";
     public static final String STATUS_PENDING = "PENDING";
 
-    // Maximum number of history records to keep
-    private static final int MAX_HISTORY_RECORDS = 100;
+    // Number of history records to keep
+    public static final int DEFAULT_CAPACITY = 1000;
+    private static final int MIN_CAPACITY = 10;
+    private static final int MAX_CAPACITY = 100000;
+
+    // Largest page returned by a single search
+    private static final int MAX_PAGE_SIZE = 500;
 
     private static final String SQL_CREATE_TABLE = "CREATE TABLE " + TABLE_MESSAGE_HISTORY + " (" +
-            COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            COLUMN_ID + " INTEGER PRIMARY KEY," +
+            COLUMN_SEQ + " INTEGER NOT NULL," +
             COLUMN_FROM_NUMBER + " TEXT NOT NULL," +
             COLUMN_MESSAGE_CONTENT + " TEXT NOT NULL," +
             COLUMN_PLATFORM + " TEXT NOT NULL," +
@@ -56,27 +74,186 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
 
     private static final String SQL_DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_MESSAGE_HISTORY;
 
+    // FTS4 with external content: the index stores only tokens, the text stays in message_history.
+    // FTS5 is not available on every supported Android version.
+    private static final String SQL_CREATE_FTS_TABLE = "CREATE VIRTUAL TABLE " + TABLE_MESSAGE_HISTORY_FTS +
+            " USING fts4(content=\"" + TABLE_MESSAGE_HISTORY + "\", " +
+            COLUMN_FROM_NUMBER + ", " + COLUMN_MESSAGE_CONTENT + ", tokenize=unicode61)";
+
+    private static final String FTS_DELETE_OLD = "DELETE FROM " + TABLE_MESSAGE_HISTORY_FTS +
+            " WHERE " + COLUMN_DOCID + " = old." + COLUMN_ID + ";";
+    private static final String FTS_INSERT_NEW = "INSERT INTO " + TABLE_MESSAGE_HISTORY_FTS + "(" +
+            COLUMN_DOCID + ", " + COLUMN_FROM_NUMBER + ", " + COLUMN_MESSAGE_CONTENT + ") VALUES (new." +
+            COLUMN_ID + ", new." + COLUMN_FROM_NUMBER + ", new." + COLUMN_MESSAGE_CONTENT + ");";
+
+    private final Context context;
+    // Guards capacity and nextSeq, and keeps slot assignment and resizing apart
+    private final Object ringLock = new Object();
+    private int capacity;
+    private long nextSeq = -1; // Loaded from the database on first use
+    private HistoryWriter writer; // Started by the first recorded forward, guarded by ringLock
+
     public MessageHistoryDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context.getApplicationContext();
+        this.capacity = readCapacity(this.context);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.d(TAG, "Creating message history database");
         db.execSQL(SQL_CREATE_TABLE);
+        createIndexes(db);
+        createFullTextIndex(db);
+    }
 
+    private static void createIndexes(SQLiteDatabase db) {
         // Create index for better query performance
         db.execSQL("CREATE INDEX idx_forward_timestamp ON " + TABLE_MESSAGE_HISTORY +
                 "(" + COLUMN_FORWARD_TIMESTAMP + " DESC)");
+        db.execSQL("CREATE UNIQUE INDEX idx_seq ON " + TABLE_MESSAGE_HISTORY + "(" + COLUMN_SEQ + ")");
+    }
+
+    /**
+     * Create the full-text index, the triggers that keep it in sync and index existing records
+     */
+    private static void createFullTextIndex(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_FTS_TABLE);
+        // External content tables must be told about the old text before it changes
+        db.execSQL("CREATE TRIGGER message_history_fts_bu BEFORE UPDATE ON " + TABLE_MESSAGE_HISTORY +
+                " BEGIN " + FTS_DELETE_OLD + " END");
+        db.execSQL("CREATE TRIGGER message_history_fts_bd BEFORE DELETE ON " + TABLE_MESSAGE_HISTORY +
+                " BEGIN " + FTS_DELETE_OLD + " END");
+        db.execSQL("CREATE TRIGGER message_history_fts_au AFTER UPDATE ON " + TABLE_MESSAGE_HISTORY +
+                " BEGIN " + FTS_INSERT_NEW + " END");
+        db.execSQL("CREATE TRIGGER message_history_fts_ai AFTER INSERT ON " + TABLE_MESSAGE_HISTORY +
+                " BEGIN " + FTS_INSERT_NEW + " END");
+        db.execSQL("INSERT INTO " + TABLE_MESSAGE_HISTORY_FTS + "(" + TABLE_MESSAGE_HISTORY_FTS +
+                ") VALUES ('rebuild')");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 2) {
+            // Keep existing records: their old row IDs become sequence numbers.
+            // Slots are fixed up for the configured capacity on first use.
+            String columns = COLUMN_FROM_NUMBER + ", " + COLUMN_MESSAGE_CONTENT + ", " + COLUMN_PLATFORM + ", " +
+                    COLUMN_STATUS + ", " + COLUMN_ERROR_MESSAGE + ", " + COLUMN_TIMESTAMP + ", " +
+                    COLUMN_FORWARD_TIMESTAMP + ", " + COLUMN_CREATED_AT;
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGE_HISTORY + " RENAME TO " + TABLE_MESSAGE_HISTORY + "_v1");
+            db.execSQL("DROP INDEX IF EXISTS idx_forward_timestamp");
+            db.execSQL(SQL_CREATE_TABLE);
+            db.execSQL("INSERT INTO " + TABLE_MESSAGE_HISTORY + " (" + COLUMN_ID + ", " + COLUMN_SEQ + ", " +
+                    columns + ") SELECT " + COLUMN_ID + ", " + COLUMN_ID + ", " + columns +
+                    " FROM " + TABLE_MESSAGE_HISTORY + "_v1");
+            db.execSQL("DROP TABLE " + TABLE_MESSAGE_HISTORY + "_v1");
+            createIndexes(db);
+        }
+        if (oldVersion < 3) {
+            createFullTextIndex(db);
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_MESSAGE_HISTORY_FTS);
         db.execSQL(SQL_DROP_TABLE);
         onCreate(db);
     }
 
+    /**
+     * Read the configured history capacity from preferences
+     */
+    public static int readCapacity(Context context) {
+        String value = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(context.getString(R.string.key_history_capacity), String.valueOf(DEFAULT_CAPACITY));
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, parsed));
+        } catch (NumberFormatException e) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    /**
+     * Get the number of records the history keeps
+     */
+    public int getCapacity() {
+        synchronized (ringLock) {
+            return capacity;
+        }
+    }
+
+    /**
+     * Change the number of records to keep. Shrinking drops the oldest records.
+     */
+    public void setCapacity(int newCapacity) {
+        newCapacity = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, newCapacity));
+        synchronized (ringLock) {
+            if (newCapacity == capacity && nextSeq >= 0) {
+                return;
+            }
+            capacity = newCapacity;
+            if (nextSeq >= 0) {
+                reslot(getWritableDatabase());
+            }
+            // Otherwise the ring is checked against the new capacity on first use
+        }
+    }
+
+    /**
+     * Load the next sequence number and make sure every record sits in the
+     * slot the current capacity assigns to it. Must hold ringLock.
+     */
+    private void ensureRingLoaded(SQLiteDatabase db) {
+        if (nextSeq >= 0) {
+            return;
+        }
+        long maxSeq = -1;
+        Cursor cursor = db.rawQuery("SELECT MAX(" + COLUMN_SEQ + ") FROM " + TABLE_MESSAGE_HISTORY, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                maxSeq = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        nextSeq = maxSeq + 1;
+
+        // Records are out of place after an upgrade or a capacity change while the app was closed
+        cursor = db.rawQuery("SELECT 1 FROM " + TABLE_MESSAGE_HISTORY + " WHERE " + COLUMN_ID +
+                " != " + COLUMN_SEQ + " % ? LIMIT 1", new String[] { String.valueOf(capacity) });
+        try {
+            if (cursor.moveToFirst()) {
+                reslot(db);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drop records that no longer fit and move the rest to their slots for
+     * the current capacity. Must hold ringLock.
+     */
+    private void reslot(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_MESSAGE_HISTORY, COLUMN_SEQ + " < ?",
+                    new String[] { String.valueOf(nextSeq - capacity) });
+            // Two passes through negative slots so no update collides with a record not yet moved
+            db.execSQL("UPDATE " + TABLE_MESSAGE_HISTORY + " SET " + COLUMN_ID + " = -1 - (" +
+                    COLUMN_SEQ + " % " + capacity + ")");
+            db.execSQL("UPDATE " + TABLE_MESSAGE_HISTORY + " SET " + COLUMN_ID + " = -1 - " + COLUMN_ID);
+            db.setTransactionSuccessful();
+            Log.d(TAG, "History ring resized to " + capacity + " records");
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * Record a successful message forward
      */
@@ -98,41 +275,74 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
      */
     private void recordForward(String fromNumber, String messageContent, String platform,
             String status, String errorMessage, long originalTimestamp) {
-        SQLiteDatabase db = this.getWritableDatabase();
         long currentTime = System.currentTimeMillis();
 
-        try {
-            db.beginTransaction();
-
-            // Insert new record
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_FROM_NUMBER, fromNumber);
-            values.put(COLUMN_MESSAGE_CONTENT, truncateMessage(messageContent));
-            values.put(COLUMN_PLATFORM, platform);
-            values.put(COLUMN_STATUS, status);
-            values.put(COLUMN_ERROR_MESSAGE, errorMessage);
-            values.put(COLUMN_TIMESTAMP, originalTimestamp);
-            values.put(COLUMN_FORWARD_TIMESTAMP, currentTime);
-            values.put(COLUMN_CREATED_AT, currentTime);
-
-            long newId = db.insert(TABLE_MESSAGE_HISTORY, null, values);
-
-            if (newId != -1) {
-                Log.d(TAG, "Recorded message history: " + platform + " (" + status + ")");
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FROM_NUMBER, fromNumber);
+        values.put(COLUMN_MESSAGE_CONTENT, truncateMessage(messageContent));
+        values.put(COLUMN_PLATFORM, platform);
+        values.put(COLUMN_STATUS, status);
+        values.put(COLUMN_ERROR_MESSAGE, errorMessage);
+        values.put(COLUMN_TIMESTAMP, originalTimestamp);
+        values.put(COLUMN_FORWARD_TIMESTAMP, currentTime);
+        values.put(COLUMN_CREATED_AT, currentTime);
+
+        getWriter().add(values);
+    }
 
-                // Cleanup old records to maintain limit
-                cleanupOldRecords(db);
+    private HistoryWriter getWriter() {
+        synchronized (ringLock) {
+            if (writer == null) {
+                writer = new HistoryWriter(this::insertRecords);
+            }
+            return writer;
+        }
+    }
 
+    /**
+     * Write queued records to their ring slots in one transaction
+     */
+    private void insertRecords(List<ContentValues> records) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        synchronized (ringLock) {
+            ensureRingLoaded(db);
+            long seq = nextSeq;
+            db.beginTransaction();
+            try {
+                for (ContentValues values : records) {
+                    long slot = seq % capacity;
+                    values.put(COLUMN_SEQ, seq);
+                    values.put(COLUMN_ID, slot);
+                    // Overwrite the oldest record once the ring is full. Deleted explicitly rather than
+                    // with INSERT OR REPLACE, which skips delete triggers and would leave it in the index.
+                    db.delete(TABLE_MESSAGE_HISTORY, COLUMN_ID + " = ?", new String[] { String.valueOf(slot) });
+                    if (db.insert(TABLE_MESSAGE_HISTORY, null, values) != -1) {
+                        seq++;
+                    } else {
+                        Log.e(TAG, "Failed to insert message history record");
+                    }
+                }
                 db.setTransactionSuccessful();
-            } else {
-                Log.e(TAG, "Failed to insert message history record");
+            } finally {
+                db.endTransaction();
             }
+            nextSeq = seq;
+        }
+        Log.d(TAG, "Recorded " + records.size() + " message history record(s)");
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error recording message history", e);
-        } finally {
-            db.endTransaction();
+    @Override
+    public void close() {
+        // Write what is still queued before the connection goes away
+        HistoryWriter pendingWriter;
+        synchronized (ringLock) {
+            pendingWriter = writer;
+            writer = null;
+        }
+        if (pendingWriter != null) {
+            pendingWriter.close();
         }
+        super.close();
     }
 
     /**
@@ -143,7 +353,7 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getReadableDatabase();
 
         String orderBy = COLUMN_FORWARD_TIMESTAMP + " DESC";
-        String limitStr = String.valueOf(Math.min(limit, MAX_HISTORY_RECORDS));
+        String limitStr = String.valueOf(Math.min(limit, getCapacity()));
 
         Cursor cursor = db.query(TABLE_MESSAGE_HISTORY, null, null, null,
                 null, null, orderBy, limitStr);
@@ -171,7 +381,7 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
         String selection = COLUMN_PLATFORM + " = ?";
         String[] selectionArgs = { platform };
         String orderBy = COLUMN_FORWARD_TIMESTAMP + " DESC";
-        String limitStr = String.valueOf(Math.min(limit, MAX_HISTORY_RECORDS));
+        String limitStr = String.valueOf(Math.min(limit, getCapacity()));
 
         Cursor cursor = db.query(TABLE_MESSAGE_HISTORY, null, selection, selectionArgs,
                 null, null, orderBy, limitStr);
@@ -188,6 +398,104 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
         return history;
     }
 
+    /**
+     * Search message history, newest first, one page at a time
+     *
+     * @param query    Words to look for in the sender or message text, matched as prefixes;
+     *                 null or empty matches every record
+     * @param platform Only records for this platform, or null for all
+     * @param status   Only records with this status, or null for all
+     * @param from     Only records forwarded at or after this time, or 0 for no lower bound
+     * @param to       Only records forwarded at or before this time, or 0 for no upper bound
+     * @param limit    Maximum number of records in the page
+     * @param cursor   Position to continue from, taken from the previous page, or null for the first page
+     */
+    public HistoryPage searchHistory(String query, String platform, String status, long from, long to,
+            int limit, HistoryCursor cursor) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        StringBuilder sql = new StringBuilder("SELECT h.* FROM " + TABLE_MESSAGE_HISTORY + " h");
+        List<String> where = new ArrayList<>();
+        List<String> args = new ArrayList<>();
+
+        String match = toMatchExpression(query);
+        if (match != null) {
+            sql.append(" JOIN ").append(TABLE_MESSAGE_HISTORY_FTS).append(" f ON f.").append(COLUMN_DOCID)
+                    .append(" = h.").append(COLUMN_ID);
+            where.add("f." + TABLE_MESSAGE_HISTORY_FTS + " MATCH ?");
+            args.add(match);
+        }
+        if (platform != null) {
+            where.add("h." + COLUMN_PLATFORM + " = ?");
+            args.add(platform);
+        }
+        if (status != null) {
+            where.add("h." + COLUMN_STATUS + " = ?");
+            args.add(status);
+        }
+        if (from > 0) {
+            where.add("h." + COLUMN_FORWARD_TIMESTAMP + " >= ?");
+            args.add(String.valueOf(from));
+        }
+        if (to > 0) {
+            where.add("h." + COLUMN_FORWARD_TIMESTAMP + " <= ?");
+            args.add(String.valueOf(to));
+        }
+        if (cursor != null) {
+            // Keyset pagination: continue strictly after the last record of the previous page
+            where.add("(h." + COLUMN_FORWARD_TIMESTAMP + " < ? OR (h." + COLUMN_FORWARD_TIMESTAMP +
+                    " = ? AND h." + COLUMN_ID + " < ?))");
+            args.add(String.valueOf(cursor.forwardTimestamp));
+            args.add(String.valueOf(cursor.forwardTimestamp));
+            args.add(String.valueOf(cursor.id));
+        }
+        if (!where.isEmpty()) {
+            sql.append(" WHERE ").append(String.join(" AND ", where));
+        }
+        sql.append(" ORDER BY h.").append(COLUMN_FORWARD_TIMESTAMP).append(" DESC, h.").append(COLUMN_ID)
+                .append(" DESC LIMIT ").append(limit + 1); // One extra row tells whether there is a next page
+
+        List<HistoryRecord> records = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor result = db.rawQuery(sql.toString(), args.toArray(new String[0]));
+        try {
+            while (result.moveToNext()) {
+                records.add(createHistoryRecordFromCursor(result));
+            }
+        } finally {
+            result.close();
+        }
+
+        HistoryCursor next = null;
+        if (records.size() > limit) {
+            records.remove(limit);
+            HistoryRecord last = records.get(limit - 1);
+            next = new HistoryCursor(last.forwardTimestamp, last.id);
+        }
+        return new HistoryPage(records, next);
+    }
+
+    /**
+     * Turn user input into an FTS query: every word must match as a prefix.
+     * Quoting each word keeps FTS operators and punctuation from being interpreted.
+     */
+    private static String toMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.trim().split("\\s+")) {
+            String term = word.replace("\"", "");
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
     /**
      * Get recent message history statistics
      */
@@ -238,37 +546,6 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
         }
     }
 
-    /**
-     * Cleanup old records to maintain the maximum limit
-     */
-    private void cleanupOldRecords(SQLiteDatabase db) {
-        try {
-            // Count current records
-            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_MESSAGE_HISTORY, null);
-            int currentCount = 0;
-            if (cursor.moveToFirst()) {
-                currentCount = cursor.getInt(0);
-            }
-            cursor.close();
-
-            // Delete excess records if over limit
-            if (currentCount > MAX_HISTORY_RECORDS) {
-                int recordsToDelete = currentCount - MAX_HISTORY_RECORDS;
-
-                String deleteQuery = "DELETE FROM " + TABLE_MESSAGE_HISTORY +
-                        " WHERE " + COLUMN_ID + " IN (" +
-                        "SELECT " + COLUMN_ID + " FROM " + TABLE_MESSAGE_HISTORY +
-                        " ORDER BY " + COLUMN_FORWARD_TIMESTAMP + " ASC LIMIT " + recordsToDelete + ")";
-
-                db.execSQL(deleteQuery);
-                Log.d(TAG, "Cleaned up " + recordsToDelete + " old history records");
-            }
-
-        } catch (Exception e) {
-            Log.e(TAG, "Error during cleanup", e);
-        }
-    }
-
     /**
      * Truncate message content to prevent very long messages from consuming too
      * much space
@@ -363,6 +640,36 @@ public class MessageHistoryDbHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Position in the history, newest first: the last record of a page
+     */
+    public static final class HistoryCursor {
+        public final long forwardTimestamp;
+        public final long id;
+
+        public HistoryCursor(long forwardTimestamp, long id) {
+            this.forwardTimestamp = forwardTimestamp;
+            this.id = id;
+        }
+    }
+
+    /**
+     * One page of history records
+     */
+    public static final class HistoryPage {
+        public final List<HistoryRecord> records;
+        public final HistoryCursor nextCursor; // Null when there are no more records
+
+        public HistoryPage(List<HistoryRecord> records, HistoryCursor nextCursor) {
+            this.records = records;
+            this.nextCursor = nextCursor;
+        }
+
+        public boolean hasMore() {
+            return nextCursor != null;
+        }
+    }
+
     /**
      * Represents message history statistics
      */
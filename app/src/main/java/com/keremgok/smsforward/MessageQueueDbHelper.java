@@ -8,7 +8,11 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * SQLite database helper for managing offline message queue.
@@ -17,7 +21,8 @@ import java.util.List;
 public class MessageQueueDbHelper extends SQLiteOpenHelper {
     private static final String TAG = "MessageQueueDbHelper";
     private static final String DATABASE_NAME = "sms_forward_queue.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
+    private static final long FAILED_RETENTION_MS = 7L * 24 * 60 * 60 * 1000; // Messages that gave up are kept this long
 
     // Table name and columns
     private static final String TABLE_MESSAGE_QUEUE = "message_queue";
@@ -31,6 +36,10 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
     private static final String COLUMN_CREATED_AT = "created_at";
     private static final String COLUMN_LAST_RETRY_AT = "last_retry_at";
     private static final String COLUMN_STATUS = "status";
+    private static final String COLUMN_BATCH_ID = "batch_id"; // Set for messages that failed together in one digest
+    private static final String COLUMN_CLAIMED_BY = "claimed_by"; // Worker currently processing the message
+    private static final String COLUMN_LEASE_EXPIRES_AT = "lease_expires_at"; // Claim is void after this time
+    private static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at"; // Not retried before this time, NULL if never again
 
     // Status values
     public static final String STATUS_PENDING = "PENDING";
@@ -48,9 +57,30 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
             COLUMN_RETRY_COUNT + " INTEGER DEFAULT 0," +
             COLUMN_CREATED_AT + " INTEGER NOT NULL," +
             COLUMN_LAST_RETRY_AT + " INTEGER," +
-            COLUMN_STATUS + " TEXT DEFAULT '" + STATUS_PENDING + "'" +
+            COLUMN_STATUS + " TEXT DEFAULT '" + STATUS_PENDING + "'," +
+            COLUMN_BATCH_ID + " TEXT," +
+            COLUMN_CLAIMED_BY + " TEXT," +
+            COLUMN_LEASE_EXPIRES_AT + " INTEGER," +
+            COLUMN_NEXT_ATTEMPT_AT + " INTEGER" +
             ")";
 
+    // Status counts and the oldest pending message are read without scanning the table
+    private static final String INDEX_STATUS_CREATED_AT = "idx_message_queue_status_created_at";
+    private static final String SQL_CREATE_STATUS_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_STATUS_CREATED_AT +
+            " ON " + TABLE_MESSAGE_QUEUE + " (" + COLUMN_STATUS + ", " + COLUMN_CREATED_AT + ")";
+
+    // The earliest due message is found, and due messages are claimed in order, by walking this index
+    private static final String INDEX_STATUS_NEXT_ATTEMPT_AT = "idx_message_queue_status_next_attempt_at_id";
+    private static final String SQL_CREATE_NEXT_ATTEMPT_INDEX = "CREATE INDEX IF NOT EXISTS " +
+            INDEX_STATUS_NEXT_ATTEMPT_AT + " ON " + TABLE_MESSAGE_QUEUE +
+            " (" + COLUMN_STATUS + ", " + COLUMN_NEXT_ATTEMPT_AT + ", " + COLUMN_ID + ")";
+    private static final String OLD_INDEX_STATUS_NEXT_ATTEMPT_AT = "idx_message_queue_status_next_attempt_at";
+
+    // The other messages of a failed digest are found without scanning the table
+    private static final String INDEX_BATCH_ID = "idx_message_queue_batch_id";
+    private static final String SQL_CREATE_BATCH_ID_INDEX = "CREATE INDEX IF NOT EXISTS " + INDEX_BATCH_ID +
+            " ON " + TABLE_MESSAGE_QUEUE + " (" + COLUMN_BATCH_ID + ")";
+
     private static final String SQL_DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_MESSAGE_QUEUE;
 
     public MessageQueueDbHelper(Context context) {
@@ -61,11 +91,46 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         Log.d(TAG, "Creating message queue database");
         db.execSQL(SQL_CREATE_TABLE);
+        db.execSQL(SQL_CREATE_STATUS_INDEX);
+        db.execSQL(SQL_CREATE_NEXT_ATTEMPT_INDEX);
+        db.execSQL(SQL_CREATE_BATCH_ID_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        // Migrate in place so queued messages survive app updates
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGE_QUEUE + " ADD COLUMN " + COLUMN_BATCH_ID + " TEXT");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGE_QUEUE + " ADD COLUMN " + COLUMN_CLAIMED_BY + " TEXT");
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGE_QUEUE + " ADD COLUMN " + COLUMN_LEASE_EXPIRES_AT + " INTEGER");
+            // Rows left in PROCESSING by an older version can be claimed again right away
+            db.execSQL("UPDATE " + TABLE_MESSAGE_QUEUE + " SET " + COLUMN_LEASE_EXPIRES_AT + " = 0 WHERE " +
+                    COLUMN_STATUS + " = '" + STATUS_PROCESSING + "'");
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SQL_CREATE_STATUS_INDEX);
+        }
+        if (oldVersion < 5) {
+            // Existing messages are due right away
+            db.execSQL("ALTER TABLE " + TABLE_MESSAGE_QUEUE + " ADD COLUMN " + COLUMN_NEXT_ATTEMPT_AT +
+                    " INTEGER DEFAULT 0");
+            db.execSQL(SQL_CREATE_NEXT_ATTEMPT_INDEX);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_BATCH_ID_INDEX);
+        }
+        if (oldVersion < 7) {
+            db.execSQL("DROP INDEX IF EXISTS " + OLD_INDEX_STATUS_NEXT_ATTEMPT_AT);
+            db.execSQL(SQL_CREATE_NEXT_ATTEMPT_INDEX);
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Log.d(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion);
         db.execSQL(SQL_DROP_TABLE);
         onCreate(db);
     }
@@ -75,6 +140,24 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
      */
     public long enqueueMessage(String fromNumber, String messageContent, long timestamp,
             String forwarderType, String forwarderConfig) {
+        return enqueueMessage(fromNumber, messageContent, timestamp, forwarderType, forwarderConfig, null);
+    }
+
+    /**
+     * Add a failed message to the queue, remembering the digest it was part of
+     * so it can be retried together with the other messages of that digest
+     */
+    public long enqueueMessage(String fromNumber, String messageContent, long timestamp,
+            String forwarderType, String forwarderConfig, String batchId) {
+        return enqueueMessage(fromNumber, messageContent, timestamp, forwarderType, forwarderConfig, batchId,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Add a message to the queue that is not attempted before the given time
+     */
+    public long enqueueMessage(String fromNumber, String messageContent, long timestamp,
+            String forwarderType, String forwarderConfig, String batchId, long nextAttemptAt) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
 
@@ -84,8 +167,11 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         values.put(COLUMN_FORWARDER_TYPE, forwarderType);
         values.put(COLUMN_FORWARDER_CONFIG, forwarderConfig);
         values.put(COLUMN_RETRY_COUNT, 0);
-        values.put(COLUMN_CREATED_AT, System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        values.put(COLUMN_CREATED_AT, now);
+        values.put(COLUMN_NEXT_ATTEMPT_AT, nextAttemptAt);
         values.put(COLUMN_STATUS, STATUS_PENDING);
+        values.put(COLUMN_BATCH_ID, batchId);
 
         long id = db.insert(TABLE_MESSAGE_QUEUE, null, values);
         Log.d(TAG, "Enqueued message with ID: " + id + " from " + fromNumber + " via " + forwarderType);
@@ -94,45 +180,237 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Get all pending messages that need to be retried
+     * Atomically claim the next page of up to {@code limit} messages after the
+     * cursor for one worker, and advance the cursor past that page.
+     * Pending and failed messages whose next attempt is due are claimable, as are messages whose
+     * previous claim expired (e.g. the worker's process was killed). Claimed
+     * messages are moved to PROCESSING so no other worker picks them up
+     * until the lease expires or the message is updated.
+     * Due messages are paged in (next attempt, ID) order along the status
+     * index, so a page reads about {@code limit} index entries per status no
+     * matter how many messages wait or have given up.
+     * A digest is always claimed whole: the other messages that failed in the
+     * same digest as a message of the page are claimed along with it, so the
+     * digest is sent again as one, by one worker.
+     * Workers of one cycle share the cursor; only one page is ever read.
+     *
+     * @param workerId Identifies the claiming worker
+     * @param limit    Maximum number of messages in the page, not counting the rest of their digests
+     * @param cursor   Where the page starts, advanced within the same transaction
+     * @param leaseMs  How long the claim stays valid
+     * @return The claimed messages in ID order, with the status they had
+     *         before they were claimed
      */
-    public List<QueuedMessage> getPendingMessages() {
+    public List<QueuedMessage> claimNext(String workerId, int limit, ClaimCursor cursor, long leaseMs) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        long now = System.currentTimeMillis();
         List<QueuedMessage> messages = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
 
-        String selection = COLUMN_STATUS + " IN (?, ?)";
-        String[] selectionArgs = { STATUS_PENDING, STATUS_FAILED };
-        String orderBy = COLUMN_CREATED_AT + " ASC";
+        // Exclusive transaction: the select and the update happen as one step,
+        // and no other worker moves the cursor in between
+        db.beginTransaction();
+        try {
+            // Messages left behind by a worker whose lease expired; there are never many
+            readMessages(db, COLUMN_STATUS + " = ? AND " + COLUMN_LEASE_EXPIRES_AT + " < ?",
+                    new String[] { STATUS_PROCESSING, String.valueOf(now) }, null, limit, messages);
+
+            // Due messages after the cursor. Each status is one range of the index, read in
+            // index order; the two ranges are merged here and cut to the page size.
+            List<QueuedMessage> due = new ArrayList<>();
+            long afterNextAttemptAt = cursor.getAfterNextAttemptAt();
+            long afterId = cursor.getAfterId();
+            String dueSelection = COLUMN_STATUS + " = ? AND " + COLUMN_NEXT_ATTEMPT_AT + " >= ? AND " +
+                    COLUMN_NEXT_ATTEMPT_AT + " <= ? AND (" + COLUMN_NEXT_ATTEMPT_AT + " > ? OR " +
+                    COLUMN_ID + " > ?)";
+            String dueOrder = COLUMN_NEXT_ATTEMPT_AT + " ASC, " + COLUMN_ID + " ASC";
+            int room = limit - messages.size();
+            if (room > 0) {
+                for (String status : new String[] { STATUS_PENDING, STATUS_FAILED }) {
+                    readMessages(db, dueSelection, new String[] { status, String.valueOf(afterNextAttemptAt),
+                            String.valueOf(now), String.valueOf(afterNextAttemptAt), String.valueOf(afterId) },
+                            dueOrder, room, due);
+                }
+                Collections.sort(due, (a, b) -> a.nextAttemptAt != b.nextAttemptAt
+                        ? Long.compare(a.nextAttemptAt, b.nextAttemptAt)
+                        : Long.compare(a.id, b.id));
+                if (due.size() > room) {
+                    due = new ArrayList<>(due.subList(0, room));
+                }
+            }
+            if (!due.isEmpty()) {
+                QueuedMessage last = due.get(due.size() - 1);
+                cursor.advance(last.nextAttemptAt, last.id);
+                messages.addAll(due);
+            }
+
+            if (messages.isEmpty()) {
+                db.setTransactionSuccessful();
+                return messages;
+            }
 
-        Cursor cursor = db.query(TABLE_MESSAGE_QUEUE, null, selection, selectionArgs,
-                null, null, orderBy);
+            addRestOfDigests(db, messages, now);
 
+            String[] ids = new String[messages.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = String.valueOf(messages.get(i).id);
+            }
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_STATUS, STATUS_PROCESSING);
+            values.put(COLUMN_CLAIMED_BY, workerId);
+            values.put(COLUMN_LEASE_EXPIRES_AT, now + leaseMs);
+            db.update(TABLE_MESSAGE_QUEUE, values,
+                    COLUMN_ID + " IN (" + String.join(",", Collections.nCopies(ids.length, "?")) + ")", ids);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.d(TAG, "Worker " + workerId + " claimed " + messages.size() + " message(s)");
+        return messages;
+    }
+
+    /**
+     * Add the messages that failed in the same digests as the given ones and
+     * are not held by a live claim, whether or not they are due yet, and sort
+     * the list by ID
+     */
+    private static void addRestOfDigests(SQLiteDatabase db, List<QueuedMessage> messages, long now) {
+        Set<String> batchIds = new LinkedHashSet<>();
+        Set<Long> claimedIds = new HashSet<>();
+        for (QueuedMessage message : messages) {
+            claimedIds.add(message.id);
+            if (message.batchId != null) {
+                batchIds.add(message.batchId);
+            }
+        }
+        if (batchIds.isEmpty()) {
+            Collections.sort(messages, (a, b) -> Long.compare(a.id, b.id));
+            return;
+        }
+
+        List<String> selectionArgs = new ArrayList<>(batchIds);
+        selectionArgs.add(STATUS_PENDING);
+        selectionArgs.add(STATUS_FAILED);
+        selectionArgs.add(STATUS_PROCESSING);
+        selectionArgs.add(String.valueOf(now));
+        String selection = COLUMN_BATCH_ID + " IN (" + String.join(",", Collections.nCopies(batchIds.size(), "?")) +
+                ") AND ((" + COLUMN_STATUS + " IN (?, ?) AND " + COLUMN_NEXT_ATTEMPT_AT + " IS NOT NULL) OR " +
+                "(" + COLUMN_STATUS + " = ? AND " + COLUMN_LEASE_EXPIRES_AT + " < ?))";
+        Cursor rows = db.query(TABLE_MESSAGE_QUEUE, null, selection, selectionArgs.toArray(new String[0]),
+                null, null, null);
         try {
-            while (cursor.moveToNext()) {
-                QueuedMessage message = new QueuedMessage();
-                message.id = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID));
-                message.fromNumber = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FROM_NUMBER));
-                message.messageContent = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CONTENT));
-                message.timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP));
-                message.forwarderType = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FORWARDER_TYPE));
-                message.forwarderConfig = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FORWARDER_CONFIG));
-                message.retryCount = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_RETRY_COUNT));
-                message.createdAt = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_CREATED_AT));
-
-                int lastRetryIndex = cursor.getColumnIndex(COLUMN_LAST_RETRY_AT);
-                if (lastRetryIndex != -1 && !cursor.isNull(lastRetryIndex)) {
-                    message.lastRetryAt = cursor.getLong(lastRetryIndex);
+            while (rows.moveToNext()) {
+                QueuedMessage message = readMessage(rows);
+                if (claimedIds.add(message.id)) {
+                    messages.add(message);
                 }
+            }
+        } finally {
+            rows.close();
+        }
+        Collections.sort(messages, (a, b) -> Long.compare(a.id, b.id));
+    }
 
-                message.status = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_STATUS));
-                messages.add(message);
+    private static void readMessages(SQLiteDatabase db, String selection, String[] selectionArgs,
+            String orderBy, int limit, List<QueuedMessage> into) {
+        Cursor rows = db.query(TABLE_MESSAGE_QUEUE, null, selection, selectionArgs, null, null, orderBy,
+                String.valueOf(limit));
+        try {
+            while (rows.moveToNext()) {
+                into.add(readMessage(rows));
+            }
+        } finally {
+            rows.close();
+        }
+    }
+
+    /**
+     * Get the time the next message becomes due: the earliest scheduled
+     * attempt or the earliest lease expiry, whichever comes first
+     *
+     * @return Time in milliseconds, or -1 if nothing is waiting to be retried
+     */
+    public long getNextDueTime() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        long next = -1;
+
+        // Two MIN() queries so each can be answered from the status index
+        Cursor cursor = db.rawQuery("SELECT MIN(" + COLUMN_NEXT_ATTEMPT_AT + ") FROM " + TABLE_MESSAGE_QUEUE +
+                " WHERE " + COLUMN_STATUS + " IN (?, ?)", new String[] { STATUS_PENDING, STATUS_FAILED });
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                next = cursor.getLong(0);
             }
         } finally {
             cursor.close();
         }
 
-        Log.d(TAG, "Retrieved " + messages.size() + " pending messages from queue");
-        return messages;
+        cursor = db.rawQuery("SELECT MIN(" + COLUMN_LEASE_EXPIRES_AT + ") FROM " + TABLE_MESSAGE_QUEUE +
+                " WHERE " + COLUMN_STATUS + " = ?", new String[] { STATUS_PROCESSING });
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                long leaseExpiry = cursor.getLong(0);
+                next = next == -1 ? leaseExpiry : Math.min(next, leaseExpiry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return next;
+    }
+
+    /**
+     * Return a claimed message to the queue without counting an attempt
+     *
+     * @param status The status the message had before it was claimed
+     */
+    public void releaseMessage(long id, String status) {
+        releaseMessage(id, status, -1);
+    }
+
+    /**
+     * Return a claimed message to the queue without counting an attempt,
+     * to be claimed again no earlier than the given time
+     *
+     * @param status        The status the message had before it was claimed
+     * @param nextAttemptAt Earliest time of the next attempt, or -1 to keep the current one
+     */
+    public void releaseMessage(long id, String status, long nextAttemptAt) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        // A message reclaimed from an expired lease has no earlier status to return to
+        values.put(COLUMN_STATUS, STATUS_PROCESSING.equals(status) ? STATUS_PENDING : status);
+        values.putNull(COLUMN_CLAIMED_BY);
+        values.putNull(COLUMN_LEASE_EXPIRES_AT);
+        if (nextAttemptAt >= 0) {
+            values.put(COLUMN_NEXT_ATTEMPT_AT, nextAttemptAt);
+        }
+
+        String whereClause = COLUMN_ID + " = ?";
+        String[] whereArgs = { String.valueOf(id) };
+        db.update(TABLE_MESSAGE_QUEUE, values, whereClause, whereArgs);
+    }
+
+    /**
+     * Return messages still claimed by the given workers to the queue,
+     * e.g. when the processor stops before finishing them
+     *
+     * @param workerIdPrefix Prefix shared by the worker IDs to release
+     */
+    public void releaseClaims(String workerIdPrefix) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_STATUS, STATUS_PENDING);
+        values.putNull(COLUMN_CLAIMED_BY);
+        values.putNull(COLUMN_LEASE_EXPIRES_AT);
+
+        String whereClause = COLUMN_STATUS + " = ? AND " + COLUMN_CLAIMED_BY + " LIKE ?";
+        String[] whereArgs = { STATUS_PROCESSING, workerIdPrefix + "%" };
+
+        int rowsReleased = db.update(TABLE_MESSAGE_QUEUE, values, whereClause, whereArgs);
+        if (rowsReleased > 0) {
+            Log.d(TAG, "Released " + rowsReleased + " claimed message(s)");
+        }
     }
 
     /**
@@ -145,6 +423,9 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         values.put(COLUMN_STATUS, status);
         values.put(COLUMN_RETRY_COUNT, retryCount);
         values.put(COLUMN_LAST_RETRY_AT, System.currentTimeMillis());
+        // Any status change ends the current claim
+        values.putNull(COLUMN_CLAIMED_BY);
+        values.putNull(COLUMN_LEASE_EXPIRES_AT);
 
         String whereClause = COLUMN_ID + " = ?";
         String[] whereArgs = { String.valueOf(id) };
@@ -153,6 +434,33 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         Log.d(TAG, "Updated message " + id + " status to " + status + " (retry " + retryCount + ")");
     }
 
+    /**
+     * Record a failed attempt and schedule the next one
+     *
+     * @param nextAttemptAt Time of the next attempt, or -1 to stop retrying
+     */
+    public void scheduleRetry(long id, int retryCount, long nextAttemptAt) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+
+        values.put(COLUMN_STATUS, STATUS_FAILED);
+        values.put(COLUMN_RETRY_COUNT, retryCount);
+        values.put(COLUMN_LAST_RETRY_AT, System.currentTimeMillis());
+        if (nextAttemptAt >= 0) {
+            values.put(COLUMN_NEXT_ATTEMPT_AT, nextAttemptAt);
+        } else {
+            values.putNull(COLUMN_NEXT_ATTEMPT_AT);
+        }
+        values.putNull(COLUMN_CLAIMED_BY);
+        values.putNull(COLUMN_LEASE_EXPIRES_AT);
+
+        String whereClause = COLUMN_ID + " = ?";
+        String[] whereArgs = { String.valueOf(id) };
+
+        db.update(TABLE_MESSAGE_QUEUE, values, whereClause, whereArgs);
+        Log.d(TAG, "Message " + id + " failed (retry " + retryCount + "), next attempt at " + nextAttemptAt);
+    }
+
     /**
      * Mark message as successfully processed and remove from queue
      */
@@ -165,7 +473,8 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
      * Mark message as failed after all retries exhausted
      */
     public void markMessageFailed(long id, int finalRetryCount) {
-        updateMessage(id, STATUS_FAILED, finalRetryCount);
+        // Keep the message for the statistics but never claim it again
+        scheduleRetry(id, finalRetryCount, -1);
     }
 
     /**
@@ -180,6 +489,19 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         Log.d(TAG, "Deleted " + rowsDeleted + " message(s) with ID " + id);
     }
 
+    /**
+     * Delete a message unless a worker has claimed or attempted it
+     *
+     * @return true if the message was deleted
+     */
+    public boolean deleteUnclaimedMessage(long id) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        int rowsDeleted = db.delete(TABLE_MESSAGE_QUEUE,
+                COLUMN_ID + " = ? AND " + COLUMN_STATUS + " = ? AND " + COLUMN_CLAIMED_BY + " IS NULL",
+                new String[] { String.valueOf(id), STATUS_PENDING });
+        return rowsDeleted > 0;
+    }
+
     /**
      * Get queue statistics
      */
@@ -239,11 +561,13 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Clean up old successful messages (older than 24 hours)
+     * Clean up old successful messages (older than 24 hours) and messages that
+     * gave up retrying more than {@link #FAILED_RETENTION_MS} ago
      */
     public void cleanupOldMessages() {
         SQLiteDatabase db = this.getWritableDatabase();
-        long cutoffTime = System.currentTimeMillis() - (24 * 60 * 60 * 1000); // 24 hours ago
+        long now = System.currentTimeMillis();
+        long cutoffTime = now - (24 * 60 * 60 * 1000); // 24 hours ago
 
         String whereClause = COLUMN_STATUS + " = ? AND " + COLUMN_CREATED_AT + " < ?";
         String[] whereArgs = { STATUS_SUCCESS, String.valueOf(cutoffTime) };
@@ -252,6 +576,76 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         if (rowsDeleted > 0) {
             Log.d(TAG, "Cleaned up " + rowsDeleted + " old successful messages");
         }
+
+        // A failed message with no next attempt will never be retried
+        whereClause = COLUMN_STATUS + " = ? AND " + COLUMN_NEXT_ATTEMPT_AT + " IS NULL AND " +
+                COLUMN_LAST_RETRY_AT + " < ?";
+        whereArgs = new String[] { STATUS_FAILED, String.valueOf(now - FAILED_RETENTION_MS) };
+
+        rowsDeleted = db.delete(TABLE_MESSAGE_QUEUE, whereClause, whereArgs);
+        if (rowsDeleted > 0) {
+            Log.d(TAG, "Cleaned up " + rowsDeleted + " messages that gave up retrying");
+        }
+    }
+
+    private static QueuedMessage readMessage(Cursor cursor) {
+        QueuedMessage message = new QueuedMessage();
+        message.id = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID));
+        message.fromNumber = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FROM_NUMBER));
+        message.messageContent = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MESSAGE_CONTENT));
+        message.timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP));
+        message.forwarderType = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FORWARDER_TYPE));
+        message.forwarderConfig = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_FORWARDER_CONFIG));
+        message.retryCount = cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_RETRY_COUNT));
+        message.createdAt = cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_CREATED_AT));
+
+        int lastRetryIndex = cursor.getColumnIndex(COLUMN_LAST_RETRY_AT);
+        if (lastRetryIndex != -1 && !cursor.isNull(lastRetryIndex)) {
+            message.lastRetryAt = cursor.getLong(lastRetryIndex);
+        }
+
+        message.status = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_STATUS));
+        message.batchId = cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_BATCH_ID));
+
+        int nextAttemptIndex = cursor.getColumnIndexOrThrow(COLUMN_NEXT_ATTEMPT_AT);
+        if (!cursor.isNull(nextAttemptIndex)) {
+            message.nextAttemptAt = cursor.getLong(nextAttemptIndex);
+        }
+        return message;
+    }
+
+    /**
+     * Where the workers of one queue cycle continue claiming. Only read and
+     * advanced inside the claim transaction, so pages never overlap.
+     */
+    public static final class ClaimCursor {
+        // Last claimed (next attempt, ID) pair; claiming continues after it
+        private long afterNextAttemptAt = Long.MIN_VALUE;
+        private long afterId;
+
+        synchronized long getAfterNextAttemptAt() {
+            return afterNextAttemptAt;
+        }
+
+        synchronized long getAfterId() {
+            return afterId;
+        }
+
+        synchronized void advance(long lastNextAttemptAt, long lastId) {
+            if (lastNextAttemptAt > afterNextAttemptAt
+                    || (lastNextAttemptAt == afterNextAttemptAt && lastId > afterId)) {
+                afterNextAttemptAt = lastNextAttemptAt;
+                afterId = lastId;
+            }
+        }
+
+        /**
+         * Start again from the earliest due message
+         */
+        public synchronized void reset() {
+            afterNextAttemptAt = Long.MIN_VALUE;
+            afterId = 0;
+        }
     }
 
     /**
@@ -268,6 +662,8 @@ public class MessageQueueDbHelper extends SQLiteOpenHelper {
         public long createdAt;
         public long lastRetryAt;
         public String status;
+        public String batchId; // Digest this message was sent in, or null
+        public long nextAttemptAt = -1; // Not retried before this time, -1 if never again
     }
 
     /**
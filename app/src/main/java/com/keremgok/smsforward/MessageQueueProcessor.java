@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
@@ -11,10 +12,18 @@ import androidx.preference.PreferenceManager;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jakarta.mail.internet.AddressException;
 import jakarta.mail.internet.InternetAddress;
@@ -22,34 +31,85 @@ import jakarta.mail.internet.InternetAddress;
 /**
  * Processes offline message queue and retries failed messages when connectivity
  * is restored.
- * Runs as a background service with periodic queue processing.
+ * Runs as a background service that wakes up when the earliest queued message
+ * is due (see {@link QueueBackoff}) instead of polling. Processing pauses
+ * completely while offline and resumes as soon as the network returns. Each cycle
+ * starts a pool of workers that claim messages in small batches under a
+ * lease, so workers never process the same message twice and messages
+ * claimed by a crashed process become available again when the lease expires.
  */
-public class MessageQueueProcessor {
+public class MessageQueueProcessor implements NetworkStatusManager.NetworkStatusListener {
     private static final String TAG = "MessageQueueProcessor";
-    private static final int QUEUE_PROCESS_INTERVAL_SECONDS = 30; // Process queue every 30 seconds
+    private static final long MIN_WAKE_DELAY_MS = 1000; // Never wake up more often than this
     private static final int MAX_QUEUE_RETRY_ATTEMPTS = 5; // Maximum queue retries (beyond normal retry mechanism)
+    private static final int DEFAULT_QUEUE_WORKERS = 2; // Workers draining the queue in parallel
+    private static final int CLAIM_BATCH_SIZE = 10; // Messages claimed by a worker at once
+    private static final long CLAIM_LEASE_MS = 5 * 60 * 1000; // Long enough for a full batch of slow SMTP sends
 
     private final Context context;
     private final MessageQueueDbHelper dbHelper;
     private final ScheduledExecutorService queueExecutor;
+    private final ExecutorService workerExecutor;
+    private final int workerCount;
+    private final String processorId; // Prefix of the worker IDs stored with claimed messages
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    // Where the workers of the current cycle continue claiming
+    private final MessageQueueDbHelper.ClaimCursor claimCursor = new MessageQueueDbHelper.ClaimCursor();
     private final NetworkStatusManager networkStatusManager;
     private final MessageStatsDbHelper statsHelper;
     private final RateLimiter rateLimiter;
+    private final CircuitBreaker circuitBreaker;
+    private volatile ForwardingConfig forwardingConfig;
     private volatile boolean isRunning = false;
+    private volatile boolean networkAvailable;
+    // Next scheduled queue cycle, guarded by cycleLock (not this: stop() waits for workers while holding it)
+    private final Object cycleLock = new Object();
+    private ScheduledFuture<?> nextCycle;
+    private long nextCycleAt;
 
     public MessageQueueProcessor(Context context) {
+        this(context, new MessageStatsDbHelper(context));
+    }
+
+    public MessageQueueProcessor(Context context, MessageStatsDbHelper statsHelper) {
+        this(context, statsHelper, DEFAULT_QUEUE_WORKERS);
+    }
+
+    /**
+     * @param workerCount Number of workers that drain the queue in parallel
+     */
+    public MessageQueueProcessor(Context context, MessageStatsDbHelper statsHelper, int workerCount) {
         this.context = context.getApplicationContext();
         this.dbHelper = new MessageQueueDbHelper(context);
         this.queueExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.workerCount = Math.max(1, workerCount);
+        this.workerExecutor = Executors.newFixedThreadPool(this.workerCount);
+        this.processorId = UUID.randomUUID().toString();
         this.networkStatusManager = NetworkStatusManager.getInstance(context);
-        this.statsHelper = new MessageStatsDbHelper(context);
+        this.statsHelper = statsHelper;
         this.rateLimiter = RateLimiter.getInstance();
+        this.circuitBreaker = CircuitBreaker.getInstance();
+    }
+
+    /**
+     * Use a shared configuration snapshot instead of reading preferences and
+     * building forwarders for every queued message
+     */
+    public void setForwardingConfig(ForwardingConfig forwardingConfig) {
+        this.forwardingConfig = forwardingConfig;
+    }
+
+    /**
+     * Check whether the queue processor has been started
+     */
+    public boolean isRunning() {
+        return isRunning;
     }
 
     /**
      * Start the queue processor service
      */
-    public void start() {
+    public synchronized void start() {
         if (isRunning) {
             Log.w(TAG, "Queue processor is already running");
             return;
@@ -58,15 +118,10 @@ public class MessageQueueProcessor {
         isRunning = true;
         Log.i(TAG, "Starting message queue processor");
 
-        // Process queue immediately on start
-        queueExecutor.execute(this::processQueue);
-
-        // Schedule periodic queue processing
-        queueExecutor.scheduleWithFixedDelay(
-                this::processQueue,
-                QUEUE_PROCESS_INTERVAL_SECONDS,
-                QUEUE_PROCESS_INTERVAL_SECONDS,
-                TimeUnit.SECONDS);
+        // Registering reports the current status, which runs the first cycle if online.
+        // Later cycles are scheduled when messages are due.
+        networkStatusManager.startMonitoring();
+        networkStatusManager.addListener(this);
 
         // Schedule periodic cleanup
         queueExecutor.scheduleWithFixedDelay(
@@ -83,23 +138,32 @@ public class MessageQueueProcessor {
     /**
      * Stop the queue processor service
      */
-    public void stop() {
+    public synchronized void stop() {
         if (!isRunning) {
             return;
         }
 
         isRunning = false;
         Log.i(TAG, "Stopping message queue processor");
+        networkStatusManager.removeListener(this);
 
         queueExecutor.shutdown();
+        workerExecutor.shutdown();
         try {
             if (!queueExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
                 queueExecutor.shutdownNow();
             }
+            if (!workerExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                workerExecutor.shutdownNow();
+            }
         } catch (InterruptedException e) {
             queueExecutor.shutdownNow();
+            workerExecutor.shutdownNow();
             Thread.currentThread().interrupt();
         }
+
+        // Hand back whatever the workers did not get to
+        dbHelper.releaseClaims(processorId + ":");
     }
 
     /**
@@ -107,112 +171,433 @@ public class MessageQueueProcessor {
      */
     public void enqueueFailedMessage(String fromNumber, String messageContent, long timestamp,
             String forwarderType, String forwarderConfig) {
+        enqueueFailedMessage(fromNumber, messageContent, timestamp, forwarderType, forwarderConfig, null);
+    }
+
+    /**
+     * Add a message that failed as part of a digest to the offline queue.
+     * Messages sharing a batch ID are retried together as one digest.
+     */
+    public void enqueueFailedMessage(String fromNumber, String messageContent, long timestamp,
+            String forwarderType, String forwarderConfig, String batchId) {
+        enqueueFailedMessage(fromNumber, messageContent, timestamp, forwarderType, forwarderConfig, batchId,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Add a failed message to the offline queue, to be retried no earlier than the
+     * given time (e.g. when the server asked for a delay with Retry-After)
+     */
+    public void enqueueFailedMessage(String fromNumber, String messageContent, long timestamp,
+            String forwarderType, String forwarderConfig, String batchId, long nextAttemptAt) {
         try {
             long messageId = dbHelper.enqueueMessage(fromNumber, messageContent, timestamp,
-                    forwarderType, forwarderConfig);
+                    forwarderType, forwarderConfig, batchId, nextAttemptAt);
             Log.i(TAG, "Enqueued failed message ID " + messageId + " for later retry");
+            scheduleCycle(nextAttemptAt);
         } catch (Exception e) {
             Log.e(TAG, "Failed to enqueue message: " + e.getMessage(), e);
         }
     }
 
     /**
-     * Process all pending messages in the queue
+     * Store a backup of a message that waits in memory, e.g. for a rate limit
+     * permit. The queue only picks it up if it was not taken back by the
+     * given time, for example because the process died.
+     *
+     * @return ID of the backup, or -1 if it could not be stored
      */
-    private void processQueue() {
-        if (!isRunning) {
-            return;
+    public long enqueueBackup(String fromNumber, String messageContent, long timestamp,
+            String forwarderType, String forwarderConfig, long dueAt) {
+        try {
+            long messageId = dbHelper.enqueueMessage(fromNumber, messageContent, timestamp,
+                    forwarderType, forwarderConfig, null, dueAt);
+            scheduleCycle(dueAt);
+            return messageId;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to store message backup: " + e.getMessage(), e);
+            return -1;
         }
+    }
 
+    /**
+     * Take back a backup stored with {@link #enqueueBackup} before sending the message from memory
+     *
+     * @return false if the queue has already claimed the message, which must then not be sent again
+     */
+    public boolean takeBackup(long messageId) {
         try {
-            List<MessageQueueDbHelper.QueuedMessage> pendingMessages = dbHelper.getPendingMessages();
+            return dbHelper.deleteUnclaimedMessage(messageId);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to take back message backup: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public void onNetworkStatusChanged(boolean isConnected, String connectionType) {
+        boolean wasAvailable = networkAvailable;
+        networkAvailable = isConnected;
+        if (isConnected && !wasAvailable) {
+            Log.d(TAG, "Network available (" + connectionType + "), draining queue");
+            scheduleCycle(System.currentTimeMillis());
+        } else if (!isConnected && wasAvailable) {
+            Log.d(TAG, "Network lost, pausing queue processing");
+            cancelCycle();
+        }
+    }
 
-            if (pendingMessages.isEmpty()) {
-                return; // No pending messages
+    /**
+     * Make sure a queue cycle runs no later than the given time.
+     * An earlier cycle that is already scheduled is kept. Nothing is
+     * scheduled while offline; reconnecting starts a cycle.
+     */
+    private void scheduleCycle(long atMillis) {
+        synchronized (cycleLock) {
+            if (!isRunning || !networkAvailable) {
+                return;
+            }
+            if (nextCycle != null && !nextCycle.isDone() && nextCycleAt <= atMillis) {
+                return;
             }
+            if (nextCycle != null) {
+                nextCycle.cancel(false);
+            }
+            long delay = Math.max(0, atMillis - System.currentTimeMillis());
+            try {
+                nextCycle = queueExecutor.schedule(this::processQueue, delay, TimeUnit.MILLISECONDS);
+                nextCycleAt = atMillis;
+            } catch (RejectedExecutionException e) {
+                nextCycle = null; // Shutting down
+            }
+        }
+    }
 
-            Log.d(TAG, "Processing " + pendingMessages.size() + " pending messages from queue");
+    private void cancelCycle() {
+        synchronized (cycleLock) {
+            if (nextCycle != null) {
+                nextCycle.cancel(false);
+                nextCycle = null;
+            }
+        }
+    }
 
-            // Check connectivity before processing
-            if (!networkStatusManager.canForwardMessages()) {
-                Log.d(TAG, "No network connectivity available (" +
-                        networkStatusManager.getConnectionStatus() + "), skipping queue processing");
-                return;
+    /**
+     * Schedule the next cycle for when the earliest queued message is due,
+     * or not at all if the queue is empty. Called when the last worker finishes.
+     */
+    private void scheduleNextDueCycle() {
+        long nextDue = dbHelper.getNextDueTime();
+        if (nextDue < 0) {
+            Log.d(TAG, "Queue is empty, waiting for new messages");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        // Rate-limited messages are due when their bucket has refilled
+        long wakeAt = Math.max(nextDue, now + MIN_WAKE_DELAY_MS);
+        Log.d(TAG, "Next queue cycle in " + (wakeAt - now) + " ms");
+        scheduleCycle(wakeAt);
+    }
+
+    /**
+     * Start queue workers until the configured number is busy
+     */
+    private void processQueue() {
+        if (!isRunning) {
+            return;
+        }
+
+        // Check connectivity before processing
+        if (!networkStatusManager.canForwardMessages()) {
+            Log.d(TAG, "No network connectivity available (" +
+                    networkStatusManager.getConnectionStatus() + "), skipping queue processing");
+            return; // Resumed by onNetworkStatusChanged
+        }
+
+        if (activeWorkers.get() == 0) {
+            // Previous cycle has finished - start again from the oldest message
+            claimCursor.reset();
+        }
+
+        int worker;
+        while ((worker = activeWorkers.get()) < workerCount) {
+            if (!activeWorkers.compareAndSet(worker, worker + 1)) {
+                continue;
+            }
+            String workerId = processorId + ":" + worker;
+            try {
+                workerExecutor.execute(() -> {
+                    try {
+                        drainQueue(workerId);
+                    } finally {
+                        if (activeWorkers.decrementAndGet() == 0 && isRunning) {
+                            scheduleNextDueCycle();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                activeWorkers.decrementAndGet();
+                return; // Shutting down
             }
+        }
+    }
 
+    /**
+     * Claim and process batches of messages until the queue is empty
+     */
+    private void drainQueue(String workerId) {
+        try {
             // Check if rate limiting is enabled
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            boolean enableRateLimiting = prefs.getBoolean(context.getString(R.string.key_enable_rate_limiting), true);
-
-            for (MessageQueueDbHelper.QueuedMessage queuedMessage : pendingMessages) {
-                // Check rate limit before processing each message if enabled
-                if (enableRateLimiting && !rateLimiter.isForwardingAllowed()) {
-                    Log.d(TAG, String.format("Rate limit reached during queue processing. " +
-                            "Current count: %d/10. Skipping remaining messages in this cycle.",
-                            rateLimiter.getCurrentForwardCount()));
-                    break; // Stop processing this cycle, will retry in next cycle
-                }
-                processQueuedMessage(queuedMessage, enableRateLimiting);
+            ForwardingConfig config = forwardingConfig;
+            boolean enableRateLimiting;
+            if (config != null) {
+                enableRateLimiting = config.rateLimitingEnabled;
+            } else {
+                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+                enableRateLimiting = prefs.getBoolean(context.getString(R.string.key_enable_rate_limiting), true);
             }
 
+            // Stop claiming new batches once the network is gone
+            while (isRunning && networkAvailable) {
+                // Messages that fail in this batch are not claimed again until the next cycle
+                List<MessageQueueDbHelper.QueuedMessage> claimed = dbHelper.claimNext(workerId,
+                        CLAIM_BATCH_SIZE, claimCursor, CLAIM_LEASE_MS);
+                if (claimed.isEmpty()) {
+                    return; // No pending messages
+                }
+
+                Log.d(TAG, "Worker " + workerId + " processing " + claimed.size() + " queued messages");
+                if (!processClaimed(claimed, enableRateLimiting)) {
+                    return;
+                }
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error processing message queue: " + e.getMessage(), e);
         }
     }
 
     /**
-     * Process a single queued message
+     * Process one claimed batch
+     *
+     * @return false if processing stopped early because of shutdown
      */
-    private void processQueuedMessage(MessageQueueDbHelper.QueuedMessage queuedMessage, boolean enableRateLimiting) {
-        try {
-            // Mark as processing
-            dbHelper.updateMessage(queuedMessage.id, MessageQueueDbHelper.STATUS_PROCESSING,
-                    queuedMessage.retryCount);
+    private boolean processClaimed(List<MessageQueueDbHelper.QueuedMessage> claimed, boolean enableRateLimiting) {
+        // Messages that failed together in one digest are retried together
+        Map<String, List<MessageQueueDbHelper.QueuedMessage>> groups = new LinkedHashMap<>();
+        for (MessageQueueDbHelper.QueuedMessage queuedMessage : claimed) {
+            String groupKey = queuedMessage.batchId != null
+                    ? "batch:" + queuedMessage.batchId
+                    : "id:" + queuedMessage.id;
+            List<MessageQueueDbHelper.QueuedMessage> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<>(1);
+                groups.put(groupKey, group);
+            }
+            group.add(queuedMessage);
+        }
 
-            // Create forwarder from stored configuration
-            Forwarder forwarder = createForwarderFromConfig(queuedMessage.forwarderType,
-                    queuedMessage.forwarderConfig);
+        boolean stopped = false;
+        for (List<MessageQueueDbHelper.QueuedMessage> group : groups.values()) {
+            if (!stopped && !isRunning) {
+                stopped = true;
+            }
+            if (stopped) {
+                // Unclaim the rest so they are picked up after a restart
+                for (MessageQueueDbHelper.QueuedMessage queuedMessage : group) {
+                    dbHelper.releaseMessage(queuedMessage.id, queuedMessage.status);
+                }
+                continue;
+            }
+            // A single message and a digest are both one send. Don't spend attempts or rate
+            // limit permits on a destination that is down - wait for the next probe.
+            MessageQueueDbHelper.QueuedMessage first = group.get(0);
+            String destination = ForwardingConfig.destinationOf(first.forwarderConfig);
+            if (circuitBreaker.getTimeUntilRetry(first.forwarderType, destination) > 0) {
+                releaseUntilCircuitRetry(group, first.forwarderType, destination);
+                continue;
+            }
+            // Check the rate limit of this destination if enabled; other destinations carry on
+            // while it is exhausted.
+            if (enableRateLimiting && !rateLimiter.tryAcquire(first.forwarderType, destination, 1)) {
+                long availableAt = System.currentTimeMillis() +
+                        rateLimiter.getTimeUntilAvailable(first.forwarderType, destination, 1);
+                for (MessageQueueDbHelper.QueuedMessage queuedMessage : group) {
+                    dbHelper.releaseMessage(queuedMessage.id, queuedMessage.status, availableAt);
+                }
+                continue;
+            }
+            // Only asked now, so a granted probe is never left unused because of the rate limit
+            if (!circuitBreaker.allowRequest(first.forwarderType, destination)) {
+                // Another worker holds the probe - give the permit back
+                if (enableRateLimiting) {
+                    rateLimiter.getBucket(first.forwarderType, destination).release(1);
+                }
+                releaseUntilCircuitRetry(group, first.forwarderType, destination);
+                continue;
+            }
+            if (group.size() > 1) {
+                processQueuedDigest(group, destination);
+            } else {
+                processQueuedMessage(first, destination);
+            }
+        }
+        return !stopped;
+    }
 
+    /**
+     * Return a claimed group to the queue until the destination's circuit allows the next probe
+     */
+    private void releaseUntilCircuitRetry(List<MessageQueueDbHelper.QueuedMessage> group, String forwarderType,
+            String destination) {
+        long retryAt = System.currentTimeMillis() + Math.max(MIN_WAKE_DELAY_MS,
+                circuitBreaker.getTimeUntilRetry(forwarderType, destination));
+        for (MessageQueueDbHelper.QueuedMessage queuedMessage : group) {
+            dbHelper.releaseMessage(queuedMessage.id, queuedMessage.status, retryAt);
+        }
+    }
+
+    /**
+     * Process a single queued message
+     */
+    private void processQueuedMessage(MessageQueueDbHelper.QueuedMessage queuedMessage, String destination) {
+        try {
+            Forwarder forwarder = resolveForwarder(queuedMessage);
             if (forwarder == null) {
                 Log.e(TAG, "Failed to create forwarder for type: " + queuedMessage.forwarderType);
                 dbHelper.markMessageFailed(queuedMessage.id, queuedMessage.retryCount);
                 return;
             }
 
-            // Try to forward the message
-            forwarder.forward(queuedMessage.fromNumber, queuedMessage.messageContent,
-                    queuedMessage.timestamp);
+            // Try to forward the message within the concurrency limit of its forwarder type
+            ConcurrencyLimiter.getInstance().call(queuedMessage.forwarderType, () -> {
+                try {
+                    ForwarderMetrics.getInstance().forward(forwarder, queuedMessage.forwarderType,
+                            queuedMessage.fromNumber, queuedMessage.messageContent, queuedMessage.timestamp);
+                } catch (Exception e) {
+                    circuitBreaker.recordFailure(queuedMessage.forwarderType, destination, e);
+                    throw e;
+                }
+                circuitBreaker.recordSuccess(queuedMessage.forwarderType, destination);
+                return null;
+            });
+
+            onQueuedMessageSuccess(queuedMessage);
 
-            // Success - remove from queue, record stats, and update rate limiter if enabled
-            dbHelper.markMessageSuccess(queuedMessage.id);
-            statsHelper.recordForwardSuccess(queuedMessage.forwarderType);
-            if (enableRateLimiting) {
-                rateLimiter.recordForwarding();
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+            // Nothing was sent - not an attempt
+            dbHelper.releaseMessage(queuedMessage.id, queuedMessage.status,
+                    System.currentTimeMillis() + ConcurrencyLimiter.RETRY_DELAY_MS);
+        } catch (Exception e) {
+            onQueuedMessageFailure(queuedMessage, e);
+        }
+    }
+
+    /**
+     * Re-send the messages of a failed email digest as one digest again
+     */
+    private void processQueuedDigest(List<MessageQueueDbHelper.QueuedMessage> digest, String destination) {
+        MessageQueueDbHelper.QueuedMessage first = digest.get(0);
+        Forwarder forwarder = resolveForwarder(first);
+        if (!(forwarder instanceof EmailForwarder)) {
+            // Only email supports digests - fall back to one message at a time
+            for (MessageQueueDbHelper.QueuedMessage queuedMessage : digest) {
+                processQueuedMessage(queuedMessage, destination);
             }
-            Log.i(TAG, "Successfully processed queued message ID " + queuedMessage.id +
-                    " via " + queuedMessage.forwarderType);
+            return;
+        }
 
+        List<BatchItem> items = new ArrayList<>(digest.size());
+        for (MessageQueueDbHelper.QueuedMessage queuedMessage : digest) {
+            items.add(new BatchItem(queuedMessage.fromNumber, queuedMessage.messageContent,
+                    queuedMessage.timestamp));
+        }
+
+        ForwarderMetrics metrics = ForwarderMetrics.getInstance();
+        long start = SystemClock.elapsedRealtime();
+        try {
+            ConcurrencyLimiter.getInstance().call(first.forwarderType, () -> {
+                try {
+                    ((EmailForwarder) forwarder).forwardDigest(items);
+                } catch (Exception e) {
+                    circuitBreaker.recordFailure(first.forwarderType, destination, e);
+                    throw e;
+                }
+                circuitBreaker.recordSuccess(first.forwarderType, destination);
+                return null;
+            });
+            metrics.recordAttempt(first.forwarderType, SystemClock.elapsedRealtime() - start);
+            for (MessageQueueDbHelper.QueuedMessage queuedMessage : digest) {
+                metrics.recordDelivery(queuedMessage.forwarderType, queuedMessage.timestamp);
+                onQueuedMessageSuccess(queuedMessage);
+            }
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+            // Nothing was sent - not an attempt
+            long retryAt = System.currentTimeMillis() + ConcurrencyLimiter.RETRY_DELAY_MS;
+            for (MessageQueueDbHelper.QueuedMessage queuedMessage : digest) {
+                dbHelper.releaseMessage(queuedMessage.id, queuedMessage.status, retryAt);
+            }
         } catch (Exception e) {
-            // Failed - increment retry count
-            int newRetryCount = queuedMessage.retryCount + 1;
-
-            Log.w(TAG, "Failed to process queued message ID " + queuedMessage.id +
-                    " (attempt " + newRetryCount + "): " + e.getMessage());
-
-            if (newRetryCount >= MAX_QUEUE_RETRY_ATTEMPTS) {
-                // Max retries reached - mark as permanently failed and record stats
-                dbHelper.markMessageFailed(queuedMessage.id, newRetryCount);
-                statsHelper.recordForwardFailure(queuedMessage.forwarderType);
-                Log.e(TAG, "Message ID " + queuedMessage.id + " permanently failed after " +
-                        newRetryCount + " queue retry attempts");
-            } else {
-                // Update retry count and try again later
-                dbHelper.updateMessage(queuedMessage.id, MessageQueueDbHelper.STATUS_FAILED,
-                        newRetryCount);
+            metrics.recordAttempt(first.forwarderType, SystemClock.elapsedRealtime() - start);
+            for (MessageQueueDbHelper.QueuedMessage queuedMessage : digest) {
+                onQueuedMessageFailure(queuedMessage, e);
             }
         }
     }
 
+    /**
+     * Reuse the prebuilt forwarder if the message was queued with the current
+     * configuration, otherwise create one from the stored configuration
+     */
+    private Forwarder resolveForwarder(MessageQueueDbHelper.QueuedMessage queuedMessage) {
+        ForwardingConfig config = forwardingConfig;
+        Forwarder forwarder = config != null
+                ? config.findForwarder(queuedMessage.forwarderType, queuedMessage.forwarderConfig)
+                : null;
+        if (forwarder == null) {
+            forwarder = createForwarderFromConfig(queuedMessage.forwarderType,
+                    queuedMessage.forwarderConfig);
+        }
+        return forwarder;
+    }
+
+    private void onQueuedMessageSuccess(MessageQueueDbHelper.QueuedMessage queuedMessage) {
+        // Success - remove from queue and record stats
+        dbHelper.markMessageSuccess(queuedMessage.id);
+        statsHelper.recordForwardSuccess(queuedMessage.forwarderType);
+        ForwarderMetrics.getInstance().recordQueueWait(queuedMessage.forwarderType, queuedMessage.createdAt);
+        Log.i(TAG, "Successfully processed queued message ID " + queuedMessage.id +
+                " via " + queuedMessage.forwarderType);
+    }
+
+    private void onQueuedMessageFailure(MessageQueueDbHelper.QueuedMessage queuedMessage, Exception e) {
+        // Failed - increment retry count
+        int newRetryCount = queuedMessage.retryCount + 1;
+
+        Log.w(TAG, "Failed to process queued message ID " + queuedMessage.id +
+                " (attempt " + newRetryCount + "): " + e.getMessage());
+
+        if (HttpStatusException.isPermanent(e)) {
+            // Rejected by the destination - retrying won't help
+            dbHelper.markMessageFailed(queuedMessage.id, newRetryCount);
+            statsHelper.recordForwardFailure(queuedMessage.forwarderType);
+            Log.e(TAG, "Message ID " + queuedMessage.id + " permanently rejected: " + e.getMessage());
+        } else if (newRetryCount >= MAX_QUEUE_RETRY_ATTEMPTS) {
+            // Max retries reached - mark as permanently failed and record stats
+            dbHelper.markMessageFailed(queuedMessage.id, newRetryCount);
+            statsHelper.recordForwardFailure(queuedMessage.forwarderType);
+            Log.e(TAG, "Message ID " + queuedMessage.id + " permanently failed after " +
+                    newRetryCount + " queue retry attempts");
+        } else {
+            // Update retry count and try again after the delay the server asked for,
+            // or after a backoff for this forwarder type
+            long retryAfterMs = HttpStatusException.getRetryAfterMs(e);
+            long delay = retryAfterMs >= 0
+                    ? retryAfterMs
+                    : QueueBackoff.getDelayMs(queuedMessage.forwarderType, newRetryCount);
+            dbHelper.scheduleRetry(queuedMessage.id, newRetryCount, System.currentTimeMillis() + delay);
+        }
+    }
+
     /**
      * Create a forwarder instance from stored configuration
      */
@@ -243,7 +628,7 @@ public class MessageQueueProcessor {
                     String password = config.getString("password");
 
                     InternetAddress from = new InternetAddress(fromAddress);
-                    InternetAddress[] to = { new InternetAddress(toAddress) };
+                    InternetAddress[] to = InternetAddress.parse(toAddress);
 
                     return new EmailForwarder(from, to, host, (short) port, username, password, context);
 
@@ -264,58 +649,4 @@ public class MessageQueueProcessor {
     public MessageQueueDbHelper.QueueStats getQueueStats() {
         return dbHelper.getQueueStats();
     }
-
-    /**
-     * Create forwarder configuration JSON for storage
-     */
-    public static String createForwarderConfig(Forwarder forwarder, Context context) {
-        try {
-            JSONObject config = new JSONObject();
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-            if (forwarder instanceof RetryableForwarder) {
-                forwarder = ((RetryableForwarder) forwarder).getDelegate();
-            }
-
-            if (forwarder instanceof SmsForwarder) {
-                String targetNumber = prefs.getString(context.getString(R.string.key_target_sms), "");
-                config.put("targetNumber", targetNumber);
-
-            } else if (forwarder instanceof TelegramForwarder) {
-                String targetId = prefs.getString(context.getString(R.string.key_target_telegram), "");
-                String apiKey = prefs.getString(context.getString(R.string.key_telegram_apikey), "");
-                config.put("targetId", targetId);
-                config.put("apiKey", apiKey);
-
-            } else if (forwarder instanceof JsonWebForwarder) {
-                String targetUrl = prefs.getString(context.getString(R.string.key_target_web), "");
-                config.put("targetUrl", targetUrl);
-
-            } else if (forwarder instanceof EmailForwarder) {
-                String fromAddress = prefs.getString(context.getString(R.string.key_email_from_address), "");
-                String toAddress = prefs.getString(context.getString(R.string.key_email_to_address), "");
-                String host = prefs.getString(context.getString(R.string.key_email_submit_host), "");
-                String port = prefs.getString(context.getString(R.string.key_email_submit_port), "587");
-                String password = prefs.getString(context.getString(R.string.key_email_submit_password), "");
-                String usernameStyle = prefs.getString(context.getString(R.string.key_email_username_style), "full");
-
-                String username = usernameStyle.equals("full") ? fromAddress
-                        : (fromAddress.contains("@") ? fromAddress.substring(0, fromAddress.indexOf("@"))
-                                : fromAddress);
-
-                config.put("fromAddress", fromAddress);
-                config.put("toAddress", toAddress);
-                config.put("host", host);
-                config.put("port", Integer.parseInt(port));
-                config.put("username", username);
-                config.put("password", password);
-            }
-
-            return config.toString();
-
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to create forwarder config: " + e.getMessage(), e);
-            return "{}";
-        }
-    }
-}
\ No newline at end of file
+}
@@ -1,26 +1,35 @@
 package com.keremgok.smsforward;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 import java.text.SimpleDateFormat;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * SQLite database helper for tracking message forwarding statistics.
  * Stores daily and total counts for monitoring and analytics.
+ * Forwards are counted in memory by {@link StatsAggregator} and written
+ * every few seconds, before every read, and when the helper is closed.
  */
 public class MessageStatsDbHelper extends SQLiteOpenHelper {
     private static final String TAG = "MessageStatsDbHelper";
     private static final String DATABASE_NAME = "sms_forward_stats.db";
     private static final int DATABASE_VERSION = 1;
+    private static final long FLUSH_INTERVAL_MS = 5000; // Pending counts are written at least this often
 
     // Table name and columns
     private static final String TABLE_DAILY_STATS = "daily_stats";
@@ -52,9 +61,18 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
 
     private static final String SQL_DROP_TABLE = "DROP TABLE IF EXISTS " + TABLE_DAILY_STATS;
 
-    // Date format for daily stats
+    // Date format for daily stats, guarded by itself
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
 
+    // Compiled counter statements keyed by the columns they increment, guarded by itself
+    private final Map<String, SQLiteStatement> counterStatements = new HashMap<>();
+
+    private final StatsAggregator aggregator = StatsAggregator.getInstance();
+    private ScheduledExecutorService flushExecutor; // Started by the first recorded forward, guarded by this
+
+    // Today's date string and when it stops being today
+    private static volatile CachedDate cachedDate;
+
     public MessageStatsDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -87,58 +105,171 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Record a message forward attempt
+     * Record a message forward attempt. Only increments an in-memory counter.
      */
     private void recordForward(String forwarderType, boolean success) {
-        String today = getTodayDateString();
-        long currentTime = System.currentTimeMillis();
+        aggregator.record(getTodayDateString(), forwarderType, success);
+        startFlusher();
+    }
 
-        SQLiteDatabase db = this.getWritableDatabase();
+    private void startFlusher() {
+        if (flushExecutor != null) {
+            return;
+        }
+        synchronized (this) {
+            if (flushExecutor == null) {
+                flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                flushExecutor.scheduleWithFixedDelay(this::flushPendingStats, FLUSH_INTERVAL_MS,
+                        FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write all counts recorded in memory to the database in one transaction
+     */
+    public void flushPendingStats() {
         try {
-            db.beginTransaction();
+            aggregator.drainTo(this::writeCounters);
+        } catch (Exception e) {
+            // Counts stay in memory and are written with the next flush
+            Log.e(TAG, "Error recording forward stats", e);
+        }
+    }
 
-            // Get or create today's record
-            DailyStats todayStats = getTodayStats();
-            if (todayStats == null) {
-                todayStats = createTodayStats();
+    private void writeCounters(List<StatsAggregator.Delta> deltas) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (StatsAggregator.Delta delta : deltas) {
+                addToCounters(delta.date, delta.forwarderType, delta.success, delta.count);
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-            // Update counters
-            ContentValues values = new ContentValues();
+    /**
+     * Add to a day's counters. The increments happen in SQL, so concurrent
+     * callers never overwrite each other's counts.
+     */
+    private void addToCounters(String date, String forwarderType, boolean success, long count) {
+        String forwarderColumn = getForwarderColumn(forwarderType);
+        String outcomeColumn = success ? COLUMN_SUCCESS_COUNT : COLUMN_FAILED_COUNT;
+        long currentTime = System.currentTimeMillis();
+        SQLiteDatabase db = this.getWritableDatabase();
 
-            // Increment forwarder-specific counter
-            String forwarderColumn = getForwarderColumn(forwarderType);
-            if (forwarderColumn != null) {
-                values.put(forwarderColumn, todayStats.getForwarderCount(forwarderType) + 1);
+        synchronized (counterStatements) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                // SQLite 3.24+ (Android 11+): a single upsert
+                SQLiteStatement upsert = getCounterStatement(db, "upsert", forwarderColumn, outcomeColumn);
+                int index = 1;
+                upsert.bindString(index++, date);
+                if (forwarderColumn != null) {
+                    upsert.bindLong(index++, count);
+                }
+                upsert.bindLong(index++, count);
+                upsert.bindLong(index++, count);
+                upsert.bindLong(index++, currentTime);
+                upsert.bindLong(index, currentTime);
+                upsert.executeInsert();
+                return;
             }
 
-            // Update total and success/failed counters
-            values.put(COLUMN_TOTAL_COUNT, todayStats.totalCount + 1);
-            if (success) {
-                values.put(COLUMN_SUCCESS_COUNT, todayStats.successCount + 1);
-            } else {
-                values.put(COLUMN_FAILED_COUNT, todayStats.failedCount + 1);
+            // Older SQLite has no upsert: create the row if missing, then increment in place
+            SQLiteStatement insert = getCounterStatement(db, "insert", null, null);
+            SQLiteStatement update = getCounterStatement(db, "update", forwarderColumn, outcomeColumn);
+            db.beginTransaction();
+            try {
+                insert.bindString(1, date);
+                insert.bindLong(2, currentTime);
+                insert.bindLong(3, currentTime);
+                insert.executeInsert();
+
+                int index = 1;
+                if (forwarderColumn != null) {
+                    update.bindLong(index++, count);
+                }
+                update.bindLong(index++, count);
+                update.bindLong(index++, count);
+                update.bindLong(index++, currentTime);
+                update.bindString(index, date);
+                update.executeUpdateDelete();
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            values.put(COLUMN_UPDATED_AT, currentTime);
-
-            // Update the record
-            String whereClause = COLUMN_DATE + " = ?";
-            String[] whereArgs = { today };
+        }
+    }
 
-            int rowsUpdated = db.update(TABLE_DAILY_STATS, values, whereClause, whereArgs);
+    /**
+     * Get a compiled counter statement, compiling it on first use
+     */
+    private SQLiteStatement getCounterStatement(SQLiteDatabase db, String kind, String forwarderColumn,
+            String outcomeColumn) {
+        String key = kind + ":" + forwarderColumn + ":" + outcomeColumn;
+        SQLiteStatement statement = counterStatements.get(key);
+        if (statement != null) {
+            return statement;
+        }
 
-            if (rowsUpdated > 0) {
-                Log.d(TAG, "Updated " + forwarderType + " stats for " + today +
-                        " (success: " + success + ")");
-            }
+        String sql;
+        switch (kind) {
+            case "insert":
+                sql = "INSERT OR IGNORE INTO " + TABLE_DAILY_STATS + " (" + COLUMN_DATE + ", " +
+                        COLUMN_CREATED_AT + ", " + COLUMN_UPDATED_AT + ") VALUES (?, ?, ?)";
+                break;
+            case "update":
+                sql = "UPDATE " + TABLE_DAILY_STATS + " SET " +
+                        (forwarderColumn != null ? forwarderColumn + " = " + forwarderColumn + " + ?, " : "") +
+                        COLUMN_TOTAL_COUNT + " = " + COLUMN_TOTAL_COUNT + " + ?, " +
+                        outcomeColumn + " = " + outcomeColumn + " + ?, " +
+                        COLUMN_UPDATED_AT + " = ? WHERE " + COLUMN_DATE + " = ?";
+                break;
+            case "upsert":
+                sql = "INSERT INTO " + TABLE_DAILY_STATS + " (" + COLUMN_DATE + ", " +
+                        (forwarderColumn != null ? forwarderColumn + ", " : "") +
+                        COLUMN_TOTAL_COUNT + ", " + outcomeColumn + ", " +
+                        COLUMN_CREATED_AT + ", " + COLUMN_UPDATED_AT + ") VALUES (?, " +
+                        (forwarderColumn != null ? "?, " : "") + "?, ?, ?, ?) " +
+                        "ON CONFLICT(" + COLUMN_DATE + ") DO UPDATE SET " +
+                        (forwarderColumn != null
+                                ? forwarderColumn + " = " + forwarderColumn + " + excluded." + forwarderColumn + ", "
+                                : "") +
+                        COLUMN_TOTAL_COUNT + " = " + COLUMN_TOTAL_COUNT + " + excluded." + COLUMN_TOTAL_COUNT + ", " +
+                        outcomeColumn + " = " + outcomeColumn + " + excluded." + outcomeColumn + ", " +
+                        COLUMN_UPDATED_AT + " = excluded." + COLUMN_UPDATED_AT;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown counter statement: " + kind);
+        }
+        statement = db.compileStatement(sql);
+        counterStatements.put(key, statement);
+        return statement;
+    }
 
-            db.setTransactionSuccessful();
+    @Override
+    public synchronized void close() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+            flushExecutor = null;
+        }
+        flushPendingStats();
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error recording forward stats", e);
-        } finally {
-            db.endTransaction();
+        // Compiled statements belong to the connection being closed
+        synchronized (counterStatements) {
+            for (SQLiteStatement statement : counterStatements.values()) {
+                statement.close();
+            }
+            counterStatements.clear();
         }
+        super.close();
     }
 
     /**
@@ -152,6 +283,7 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
      * Get statistics for a specific date
      */
     public DailyStats getStatsForDate(String date) {
+        flushPendingStats();
         SQLiteDatabase db = this.getReadableDatabase();
 
         String selection = COLUMN_DATE + " = ?";
@@ -175,6 +307,7 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
      * Get total statistics (all time)
      */
     public TotalStats getTotalStats() {
+        flushPendingStats();
         SQLiteDatabase db = this.getReadableDatabase();
 
         String query = "SELECT " +
@@ -214,6 +347,7 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
      * Get recent daily statistics (last N days)
      */
     public Map<String, DailyStats> getRecentStats(int days) {
+        flushPendingStats();
         Map<String, DailyStats> recentStats = new HashMap<>();
         SQLiteDatabase db = this.getReadableDatabase();
 
@@ -241,7 +375,10 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
 
         // Calculate cutoff date
         long cutoffTime = System.currentTimeMillis() - (keepDays * 24L * 60 * 60 * 1000);
-        String cutoffDate = DATE_FORMAT.format(new Date(cutoffTime));
+        String cutoffDate;
+        synchronized (DATE_FORMAT) {
+            cutoffDate = DATE_FORMAT.format(new Date(cutoffTime));
+        }
 
         String whereClause = COLUMN_DATE + " < ?";
         String[] whereArgs = { cutoffDate };
@@ -252,33 +389,6 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
         }
     }
 
-    /**
-     * Create today's stats record if it doesn't exist
-     */
-    private DailyStats createTodayStats() {
-        String today = getTodayDateString();
-        long currentTime = System.currentTimeMillis();
-
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-
-        values.put(COLUMN_DATE, today);
-        values.put(COLUMN_SMS_COUNT, 0);
-        values.put(COLUMN_TELEGRAM_COUNT, 0);
-        values.put(COLUMN_EMAIL_COUNT, 0);
-        values.put(COLUMN_WEB_COUNT, 0);
-        values.put(COLUMN_TOTAL_COUNT, 0);
-        values.put(COLUMN_SUCCESS_COUNT, 0);
-        values.put(COLUMN_FAILED_COUNT, 0);
-        values.put(COLUMN_CREATED_AT, currentTime);
-        values.put(COLUMN_UPDATED_AT, currentTime);
-
-        long id = db.insert(TABLE_DAILY_STATS, null, values);
-        Log.d(TAG, "Created new daily stats record for " + today + " (ID: " + id + ")");
-
-        return getTodayStats();
-    }
-
     /**
      * Create DailyStats object from cursor
      */
@@ -320,7 +430,36 @@ public class MessageStatsDbHelper extends SQLiteOpenHelper {
      * Get today's date as string
      */
     private String getTodayDateString() {
-        return DATE_FORMAT.format(new Date());
+        long now = System.currentTimeMillis();
+        CachedDate cached = cachedDate;
+        if (cached != null && now < cached.validUntil) {
+            return cached.date;
+        }
+
+        // SimpleDateFormat is not thread-safe and forwards are recorded from several threads
+        String date;
+        synchronized (DATE_FORMAT) {
+            date = DATE_FORMAT.format(new Date(now));
+            Calendar midnight = Calendar.getInstance();
+            midnight.setTimeInMillis(now);
+            midnight.set(Calendar.HOUR_OF_DAY, 0);
+            midnight.set(Calendar.MINUTE, 0);
+            midnight.set(Calendar.SECOND, 0);
+            midnight.set(Calendar.MILLISECOND, 0);
+            midnight.add(Calendar.DAY_OF_MONTH, 1);
+            cachedDate = new CachedDate(date, midnight.getTimeInMillis());
+        }
+        return date;
+    }
+
+    private static final class CachedDate {
+        final String date;
+        final long validUntil;
+
+        CachedDate(String date, long validUntil) {
+            this.date = date;
+            this.validUntil = validUntil;
+        }
     }
 
     /**
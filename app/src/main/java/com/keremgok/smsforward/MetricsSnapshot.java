@@ -0,0 +1,130 @@
+package com.keremgok.smsforward;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time copy of the latency metrics collected by
+ * {@link ForwarderMetrics}, for display and export.
+ */
+public final class MetricsSnapshot {
+    public final long capturedAt;
+    public final long collectingSince;
+    private final Map<String, ForwarderLatency> byType;
+
+    MetricsSnapshot(long collectingSince, Map<String, ForwarderLatency> byType) {
+        this.capturedAt = System.currentTimeMillis();
+        this.collectingSince = collectingSince;
+        this.byType = Collections.unmodifiableMap(new TreeMap<>(byType));
+    }
+
+    /**
+     * Get the forwarder types that have recorded at least one attempt
+     */
+    public Set<String> getForwarderTypes() {
+        return byType.keySet();
+    }
+
+    /**
+     * Get the latencies of a forwarder type, or null if nothing was recorded
+     */
+    public ForwarderLatency get(String forwarderType) {
+        return byType.get(forwarderType);
+    }
+
+    public boolean isEmpty() {
+        return byType.isEmpty();
+    }
+
+    /**
+     * Export the snapshot as JSON
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("capturedAt", capturedAt);
+        json.put("collectingSince", collectingSince);
+        JSONObject forwarders = new JSONObject();
+        for (Map.Entry<String, ForwarderLatency> entry : byType.entrySet()) {
+            ForwarderLatency latency = entry.getValue();
+            JSONObject forwarder = new JSONObject();
+            forwarder.put("attempt", latency.attempt.toJson());
+            forwarder.put("delivery", latency.delivery.toJson());
+            forwarder.put("queueWait", latency.queueWait.toJson());
+            forwarders.put(entry.getKey(), forwarder);
+        }
+        json.put("forwarders", forwarders);
+        return json;
+    }
+
+    /**
+     * Format a duration for display, e.g. "850ms", "1.2s" or "3.5min"
+     */
+    public static String formatDuration(long ms) {
+        if (ms < 1000) {
+            return ms + "ms";
+        } else if (ms < 60 * 1000) {
+            return String.format(Locale.US, "%.1fs", ms / 1000.0);
+        } else if (ms < 60 * 60 * 1000) {
+            return String.format(Locale.US, "%.1fmin", ms / 60000.0);
+        }
+        return String.format(Locale.US, "%.1fh", ms / 3600000.0);
+    }
+
+    /**
+     * Latencies of one forwarder type
+     */
+    public static final class ForwarderLatency {
+        public final Percentiles attempt; // Duration of a single forward call
+        public final Percentiles delivery; // SMS received until delivered
+        public final Percentiles queueWait; // Time spent in the offline queue
+
+        ForwarderLatency(Percentiles attempt, Percentiles delivery, Percentiles queueWait) {
+            this.attempt = attempt;
+            this.delivery = delivery;
+            this.queueWait = queueWait;
+        }
+    }
+
+    /**
+     * Summary of one histogram, all values in milliseconds
+     */
+    public static final class Percentiles {
+        public final long count;
+        public final long p50;
+        public final long p95;
+        public final long p99;
+        public final long max;
+
+        Percentiles(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.p50 = histogram.getValueAtPercentile(50);
+            this.p95 = histogram.getValueAtPercentile(95);
+            this.p99 = histogram.getValueAtPercentile(99);
+            this.max = histogram.getMax();
+        }
+
+        /**
+         * Format as "p50 120ms · p95 800ms · p99 1.2s (n=34)"
+         */
+        public String format() {
+            return String.format(Locale.US, "p50 %s · p95 %s · p99 %s (n=%d)",
+                    formatDuration(p50), formatDuration(p95), formatDuration(p99), count);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("p50", p50);
+            json.put("p95", p95);
+            json.put("p99", p99);
+            json.put("max", max);
+            return json;
+        }
+    }
+}
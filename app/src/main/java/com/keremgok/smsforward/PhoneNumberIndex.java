@@ -0,0 +1,196 @@
+package com.keremgok.smsforward;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Sender allow/block list compiled from the whitelist preference.
+ * Entries are comma-separated:
+ * <ul>
+ * <li>{@code +905551234567} allows a number</li>
+ * <li>{@code +90555*} allows every number starting with these digits</li>
+ * <li>{@code !+905559876543} or {@code !+90850*} blocks numbers, even if they are also allowed</li>
+ * <li>{@code BANKX} allows an alphanumeric sender name</li>
+ * </ul>
+ * Numbers are compared like {@code PhoneNumberUtils.compare}: they match if
+ * the digits are equal, or if one number ends with the other and at least
+ * {@link #MIN_MATCH_DIGITS} trailing digits agree, so national and
+ * international forms of the same number match. Lookups take O(digits)
+ * regardless of the number of entries.
+ */
+public final class PhoneNumberIndex {
+    private static final int MIN_MATCH_DIGITS = 7;
+
+    public static final PhoneNumberIndex EMPTY = new PhoneNumberIndex(new NumberSet(), new NumberSet());
+
+    private final NumberSet allowed;
+    private final NumberSet blocked;
+
+    private PhoneNumberIndex(NumberSet allowed, NumberSet blocked) {
+        this.allowed = allowed;
+        this.blocked = blocked;
+    }
+
+    /**
+     * Parse and index a comma-separated entry list
+     */
+    public static PhoneNumberIndex compile(String entries) {
+        if (entries == null || entries.trim().isEmpty()) {
+            return EMPTY;
+        }
+        NumberSet allowed = new NumberSet();
+        NumberSet blocked = new NumberSet();
+        for (String entry : entries.split(",")) {
+            String trimmed = entry.trim();
+            if (trimmed.startsWith("!")) {
+                blocked.add(trimmed.substring(1).trim());
+            } else {
+                allowed.add(trimmed);
+            }
+        }
+        return new PhoneNumberIndex(allowed, blocked);
+    }
+
+    /**
+     * Whether a message from this sender should be blocked
+     */
+    public boolean isBlocked(String fromNumber) {
+        if (fromNumber == null) {
+            return true;
+        }
+        if (blocked.matches(fromNumber)) {
+            return true;
+        }
+        if (allowed.isEmpty()) {
+            // Only block entries: everyone else is allowed. Nothing at all: nobody is.
+            return blocked.isEmpty();
+        }
+        return !allowed.matches(fromNumber);
+    }
+
+    /**
+     * One side of the list: exact numbers and names, number suffixes and number prefixes
+     */
+    private static final class NumberSet {
+        private final Set<String> exact = new HashSet<>(); // Digits of numbers, lowercased sender names
+        private final DigitTrie reversedNumbers = new DigitTrie(); // Numbers with their digits reversed
+        private final DigitTrie prefixes = new DigitTrie();
+
+        void add(String entry) {
+            if (entry.isEmpty()) {
+                return;
+            }
+            boolean prefix = entry.endsWith("*");
+            String digits = digitsOf(prefix ? entry.substring(0, entry.length() - 1) : entry);
+            if (digits.isEmpty()) {
+                if (!prefix) {
+                    exact.add(entry.toLowerCase(Locale.ROOT));
+                }
+            } else if (prefix) {
+                prefixes.add(digits, false);
+            } else {
+                exact.add(digits);
+                reversedNumbers.add(digits, true);
+            }
+        }
+
+        boolean isEmpty() {
+            return exact.isEmpty() && prefixes.isEmpty();
+        }
+
+        boolean matches(String number) {
+            String digits = digitsOf(number);
+            if (digits.isEmpty()) {
+                return exact.contains(number.trim().toLowerCase(Locale.ROOT));
+            }
+            return exact.contains(digits) || reversedNumbers.matchesSuffix(digits) || prefixes.matchesPrefix(digits);
+        }
+
+        private static String digitsOf(String s) {
+            StringBuilder digits = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    digits.append(c);
+                }
+            }
+            return digits.toString();
+        }
+    }
+
+    /**
+     * Trie over decimal digits stored in flat arrays, ten child slots per node
+     */
+    private static final class DigitTrie {
+        private static final int ROOT = 0;
+
+        private int[] children = new int[10 * 16]; // 0 = no child, the root is never a child
+        private boolean[] terminal = new boolean[16];
+        private int nodeCount = 1;
+
+        boolean isEmpty() {
+            return nodeCount == 1 && !terminal[ROOT];
+        }
+
+        void add(String digits, boolean reversed) {
+            int node = ROOT;
+            for (int i = 0; i < digits.length(); i++) {
+                int digit = digits.charAt(reversed ? digits.length() - 1 - i : i) - '0';
+                int child = children[node * 10 + digit];
+                if (child == 0) {
+                    child = newNode();
+                    children[node * 10 + digit] = child;
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        private int newNode() {
+            if (nodeCount == terminal.length) {
+                terminal = Arrays.copyOf(terminal, nodeCount * 2);
+                children = Arrays.copyOf(children, nodeCount * 2 * 10);
+            }
+            return nodeCount++;
+        }
+
+        /**
+         * Whether the digits and a stored number share their trailing digits:
+         * one ends with the other and at least MIN_MATCH_DIGITS of them agree
+         */
+        boolean matchesSuffix(String digits) {
+            int node = ROOT;
+            for (int depth = 1; depth <= digits.length(); depth++) {
+                node = children[node * 10 + digits.charAt(digits.length() - depth) - '0'];
+                if (node == 0) {
+                    return false;
+                }
+                // A stored number ends here and is a suffix of the digits
+                if (terminal[node] && depth >= MIN_MATCH_DIGITS) {
+                    return true;
+                }
+            }
+            // Every node lies on a stored number, so the digits are a suffix of a longer one
+            return digits.length() >= MIN_MATCH_DIGITS;
+        }
+
+        /**
+         * Whether the digits start with a stored prefix
+         */
+        boolean matchesPrefix(String digits) {
+            int node = ROOT;
+            for (int i = 0; i < digits.length(); i++) {
+                node = children[node * 10 + digits.charAt(i) - '0'];
+                if (node == 0) {
+                    return false;
+                }
+                if (terminal[node]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
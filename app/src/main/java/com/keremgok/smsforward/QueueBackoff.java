@@ -0,0 +1,53 @@
+package com.keremgok.smsforward;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry schedule for messages in the offline queue.
+ * Each forwarder type has its own base delay and cap; the delay doubles with
+ * every failed attempt and is jittered so messages that failed together do
+ * not all retry at the same moment.
+ */
+public final class QueueBackoff {
+    private static final long SECOND_MS = 1000;
+    private static final long MINUTE_MS = 60 * SECOND_MS;
+
+    private QueueBackoff() {
+    }
+
+    /**
+     * Get how long to wait before the next attempt of a queued message
+     *
+     * @param forwarderType Simple class name of the forwarder
+     * @param retryCount    Number of queue attempts that already failed (1 after the first failure)
+     * @return Delay in milliseconds, between half and all of the exponential delay
+     */
+    public static long getDelayMs(String forwarderType, int retryCount) {
+        long base;
+        long max;
+        switch (forwarderType) {
+            case "SmsForwarder":
+                // Failures are local (no signal, SMS quota) and usually clear up quickly
+                base = 30 * SECOND_MS;
+                max = 15 * MINUTE_MS;
+                break;
+            case "EmailForwarder":
+                // SMTP servers throttle aggressively - back off further
+                base = 2 * MINUTE_MS;
+                max = 60 * MINUTE_MS;
+                break;
+            case "TelegramForwarder":
+            case "JsonWebForwarder":
+            default:
+                base = MINUTE_MS;
+                max = 30 * MINUTE_MS;
+                break;
+        }
+
+        int exponent = Math.min(Math.max(retryCount - 1, 0), 20);
+        long delay = Math.min(max, base << exponent);
+        // Equal jitter: keep half the delay, randomize the other half
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+}
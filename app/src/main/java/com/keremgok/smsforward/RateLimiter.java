@@ -1,32 +1,48 @@
 package com.keremgok.smsforward;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Rate limiter to prevent spam by limiting the number of SMS forwards per
- * minute.
- * Uses a sliding window approach to track forwarding attempts.
+ * Rate limiter to prevent spam and protect destinations from bursts.
+ * Keeps one token bucket per forwarder type and destination, so a slow or
+ * throttled destination never holds back the others. SMS shares one bucket
+ * for all destinations, since the carrier limits the device as a whole.
+ * Permits are checked and taken in a single atomic step, so concurrent
+ * forwarders cannot overshoot the limit.
  * Singleton pattern ensures consistent rate limiting across all components.
  */
 public class RateLimiter {
     private static final String TAG = "RateLimiter";
-    private static final int MAX_SMS_PER_MINUTE = 10;
-    private static final long ONE_MINUTE_MS = 60 * 1000; // 60 seconds in milliseconds
+    private static final String SMS_TYPE = "SmsForwarder";
+    private static final Limit DEFAULT_LIMIT = new Limit(30, 10);
 
     private static volatile RateLimiter instance;
-    private final Queue<Long> forwardingTimestamps;
-    private final Object lock = new Object();
 
+    // Forwarder type -> limit for its buckets
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    // Forwarder type and destination -> bucket
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Only the SMS limit is a setting (see {@link #setLimit}). The others are
+     * fixed on purpose: they follow what the destination services accept,
+     * not a user preference.
+     */
     private RateLimiter() {
-        this.forwardingTimestamps = new LinkedList<>();
+        limits.put(SMS_TYPE, new Limit(10, 10));
+        limits.put("TelegramForwarder", new Limit(20, 20)); // Bot API allows about 20 messages per minute per chat
+        limits.put("JsonWebForwarder", new Limit(60, 30));
+        limits.put("EmailForwarder", new Limit(30, 10));
     }
 
     /**
      * Get the singleton instance of RateLimiter.
-     * 
+     *
      * @return the singleton RateLimiter instance
      */
     public static RateLimiter getInstance() {
@@ -41,92 +57,237 @@ public class RateLimiter {
     }
 
     /**
-     * Check if a new SMS forwarding attempt is allowed based on rate limiting
-     * rules.
-     * 
-     * @return true if forwarding is allowed, false if rate limit is exceeded
+     * Change the limit for a forwarder type. Existing buckets of that type start over full.
+     *
+     * @param permitsPerMinute Sustained rate
+     * @param burst            Permits that can be used at once after an idle period
      */
-    public boolean isForwardingAllowed() {
-        synchronized (lock) {
-            long currentTime = System.currentTimeMillis();
-
-            // Remove timestamps older than 1 minute
-            while (!forwardingTimestamps.isEmpty() &&
-                    (currentTime - forwardingTimestamps.peek()) > ONE_MINUTE_MS) {
-                forwardingTimestamps.poll();
-            }
-
-            // Check if we're under the limit
-            if (forwardingTimestamps.size() < MAX_SMS_PER_MINUTE) {
-                return true;
+    public void setLimit(String forwarderType, int permitsPerMinute, int burst) {
+        limits.put(forwarderType, new Limit(permitsPerMinute, burst));
+        String prefix = forwarderType + "\n";
+        for (String key : buckets.keySet()) {
+            if (key.equals(forwarderType) || key.startsWith(prefix)) {
+                buckets.remove(key);
             }
+        }
+        Log.d(TAG, String.format("Rate limit for %s set to %d/min, burst %d", forwarderType, permitsPerMinute, burst));
+    }
 
-            Log.w(TAG, String.format("Rate limit exceeded: %d SMS forwarded in the last minute. Maximum allowed: %d",
-                    forwardingTimestamps.size(), MAX_SMS_PER_MINUTE));
-            return false;
+    /**
+     * Take permits for a forward if they are available right now
+     *
+     * @param forwarderType Forwarder class name
+     * @param destination   Where the message goes, e.g. the webhook URL; ignored for SMS
+     * @param permits       Number of messages
+     * @return true if the permits were taken, false if the rate limit is exceeded
+     */
+    public boolean tryAcquire(String forwarderType, String destination, int permits) {
+        Bucket bucket = getBucket(forwarderType, destination);
+        if (bucket.tryAcquire(permits)) {
+            return true;
         }
+        Log.w(TAG, String.format("Rate limit exceeded for %s: %d permit(s) requested, next in %d ms",
+                forwarderType, permits, bucket.getTimeUntilAvailable(permits)));
+        return false;
     }
 
     /**
-     * Record a successful SMS forwarding attempt.
-     * This should be called after a successful forward operation.
+     * Get the time until the permits would be available
+     *
+     * @return milliseconds until the permits are available, or 0 if they are available now
      */
-    public void recordForwarding() {
-        synchronized (lock) {
-            long currentTime = System.currentTimeMillis();
-            forwardingTimestamps.offer(currentTime);
+    public long getTimeUntilAvailable(String forwarderType, String destination, int permits) {
+        return getBucket(forwarderType, destination).getTimeUntilAvailable(permits);
+    }
 
-            Log.d(TAG, String.format("Recorded SMS forward. Total in last minute: %d/%d",
-                    forwardingTimestamps.size(), MAX_SMS_PER_MINUTE));
+    /**
+     * Get the bucket for a forwarder type and destination
+     */
+    public Bucket getBucket(String forwarderType, String destination) {
+        String key = SMS_TYPE.equals(forwarderType) || destination == null
+                ? forwarderType
+                : forwarderType + "\n" + destination;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Limit limit = limits.get(forwarderType);
+            bucket = new Bucket(limit != null ? limit : DEFAULT_LIMIT);
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null) {
+                bucket = existing;
+            }
         }
+        return bucket;
     }
 
     /**
-     * Get the number of SMS forwards in the current minute window.
-     * 
-     * @return current count of forwards in the sliding window
+     * Get the number of SMS permits used in the current window.
+     *
+     * @return permits of the SMS bucket that are not available
      */
     public int getCurrentForwardCount() {
-        synchronized (lock) {
-            long currentTime = System.currentTimeMillis();
-
-            // Clean up old timestamps
-            while (!forwardingTimestamps.isEmpty() &&
-                    (currentTime - forwardingTimestamps.peek()) > ONE_MINUTE_MS) {
-                forwardingTimestamps.poll();
-            }
+        Bucket bucket = getBucket(SMS_TYPE, null);
+        return bucket.getCapacity() - bucket.getAvailablePermits();
+    }
 
-            return forwardingTimestamps.size();
-        }
+    /**
+     * Get the SMS forward limit per minute.
+     */
+    public int getSmsLimitPerMinute() {
+        return getBucket(SMS_TYPE, null).getCapacity();
     }
 
     /**
      * Get the time until the next SMS forwarding slot becomes available.
-     * 
+     *
      * @return milliseconds until next available slot, or 0 if slot is immediately
      *         available
      */
     public long getTimeUntilNextSlot() {
-        synchronized (lock) {
-            if (forwardingTimestamps.size() < MAX_SMS_PER_MINUTE) {
-                return 0; // Slot available immediately
-            }
+        return getBucket(SMS_TYPE, null).getTimeUntilAvailable(1);
+    }
 
-            // Find the oldest timestamp that's still within the window
-            long oldestTimestamp = forwardingTimestamps.peek();
-            long currentTime = System.currentTimeMillis();
+    /**
+     * Reset the rate limiter (mainly for testing purposes).
+     */
+    public void reset() {
+        buckets.clear();
+        Log.d(TAG, "Rate limiter reset");
+    }
 
-            return ONE_MINUTE_MS - (currentTime - oldestTimestamp);
+    /**
+     * Sustained rate and burst size of a bucket
+     */
+    private static final class Limit {
+        final int permitsPerMinute;
+        final int burst;
+
+        Limit(int permitsPerMinute, int burst) {
+            this.permitsPerMinute = Math.max(1, permitsPerMinute);
+            this.burst = Math.max(1, Math.min(Bucket.MAX_CAPACITY, burst));
         }
     }
 
     /**
-     * Reset the rate limiter (mainly for testing purposes).
+     * Token bucket whose whole state is one long: the time of the last refill
+     * in the high bits and the available tokens, in thousandths, in the low
+     * bits. Every operation is a single compare-and-set, so there are no locks.
      */
-    public void reset() {
-        synchronized (lock) {
-            forwardingTimestamps.clear();
-            Log.d(TAG, "Rate limiter reset");
+    public static final class Bucket {
+        private static final int TOKEN_BITS = 22;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+        private static final long MILLI = 1000; // Tokens are stored in thousandths for smooth refill
+        static final int MAX_CAPACITY = (int) (TOKEN_MASK / MILLI);
+        private static final long ORIGIN = SystemClock.elapsedRealtime();
+
+        private final int capacity;
+        private final int permitsPerMinute;
+        private final AtomicLong state;
+
+        Bucket(Limit limit) {
+            this.capacity = limit.burst;
+            this.permitsPerMinute = limit.permitsPerMinute;
+            this.state = new AtomicLong(pack(now(), capacity * MILLI));
+        }
+
+        /**
+         * Take permits if they are available right now
+         */
+        public boolean tryAcquire(int permits) {
+            long needed = permits * MILLI;
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, now());
+                long tokens = tokens(refilled);
+                if (tokens < needed) {
+                    return false;
+                }
+                if (state.compareAndSet(current, pack(time(refilled), tokens - needed))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Give back permits that were taken but not used
+         */
+        public void release(int permits) {
+            while (true) {
+                long current = state.get();
+                long refilled = refill(current, now());
+                long tokens = Math.min(capacity * MILLI, tokens(refilled) + permits * MILLI);
+                if (state.compareAndSet(current, pack(time(refilled), tokens))) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Get the time until the permits would be available, or 0 if they are available now
+         */
+        public long getTimeUntilAvailable(int permits) {
+            long now = now();
+            long refilled = refill(state.get(), now);
+            long missing = permits * MILLI - tokens(refilled);
+            if (missing <= 0) {
+                return 0;
+            }
+            // Round up so the permits are really there at that time; the refill
+            // time may lag behind now by time not yet converted into tokens
+            return Math.max(0, time(refilled) + toMillis(missing) - now);
+        }
+
+        /**
+         * Get the number of whole permits available right now
+         */
+        public int getAvailablePermits() {
+            return (int) (tokens(refill(state.get(), now())) / MILLI);
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Add the tokens earned since the last refill
+         *
+         * @return The new state. Its time only moves forward by the time that was
+         *         converted into tokens, so a remainder too short to earn a whole
+         *         thousandth counts towards the next refill instead of being lost.
+         */
+        private long refill(long packed, long now) {
+            long last = time(packed);
+            long tokens = tokens(packed);
+            long elapsed = Math.max(0, now - last);
+            // permitsPerMinute * 1000 thousandths per 60000 ms
+            long added = elapsed * permitsPerMinute / 60;
+            if (tokens + added >= capacity * MILLI) {
+                // A full bucket doesn't save up time
+                return pack(Math.max(last, now), capacity * MILLI);
+            }
+            return pack(last + toMillis(added), tokens + added);
+        }
+
+        /**
+         * Time needed to earn the given thousandths, rounded up
+         */
+        private long toMillis(long thousandths) {
+            return (thousandths * 60 + permitsPerMinute - 1) / permitsPerMinute;
+        }
+
+        private static long pack(long time, long tokens) {
+            return (time << TOKEN_BITS) | tokens;
+        }
+
+        private static long time(long packed) {
+            return packed >>> TOKEN_BITS;
+        }
+
+        private static long tokens(long packed) {
+            return packed & TOKEN_MASK;
+        }
+
+        private static long now() {
+            return SystemClock.elapsedRealtime() - ORIGIN;
         }
     }
-}
\ No newline at end of file
+}
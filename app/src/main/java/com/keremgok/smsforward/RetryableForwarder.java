@@ -2,7 +2,6 @@ package com.keremgok.smsforward;
 
 import android.util.Log;
 
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -11,29 +10,50 @@ import java.util.concurrent.TimeUnit;
  * A wrapper class that adds retry functionality to any Forwarder
  * implementation.
  * Provides automatic retry with exponential backoff for failed forward
- * operations.
+ * operations. Messages to a destination whose {@link CircuitBreaker} is open
+ * go straight to the offline queue. A retry waits exactly as long as the
+ * server asked for with Retry-After; permanent HTTP rejections are not retried.
  */
 public class RetryableForwarder implements Forwarder {
     private static final String TAG = "RetryableForwarder";
     private static final int MAX_RETRY_ATTEMPTS = 3;
     private static final long INITIAL_RETRY_DELAY_MS = 1000; // 1 second
     private static final double BACKOFF_MULTIPLIER = 2.0; // Exponential backoff
+    private static final long MAX_IN_MEMORY_RETRY_AFTER_MS = 60 * 1000; // Longer server-requested delays wait in the queue
 
     private final Forwarder delegate;
     private final ScheduledExecutorService retryExecutor;
+    private final boolean ownsRetryExecutor;
     private final MessageQueueProcessor queueProcessor;
     private MessageStatsDbHelper statsHelper;
     private MessageHistoryDbHelper historyHelper;
+    private volatile String forwarderConfig = "{}";
+    private volatile String destination;
 
     public RetryableForwarder(Forwarder delegate) {
         this.delegate = delegate;
         this.retryExecutor = Executors.newScheduledThreadPool(2);
+        this.ownsRetryExecutor = true;
         this.queueProcessor = null; // Will be set later via constructor or setter
     }
 
     public RetryableForwarder(Forwarder delegate, MessageQueueProcessor queueProcessor) {
         this.delegate = delegate;
         this.retryExecutor = Executors.newScheduledThreadPool(2);
+        this.ownsRetryExecutor = true;
+        this.queueProcessor = queueProcessor;
+    }
+
+    /**
+     * Create a forwarder that schedules its retries on a shared executor.
+     * The executor is owned by the caller and is not shut down by
+     * {@link #shutdown()}.
+     */
+    public RetryableForwarder(Forwarder delegate, MessageQueueProcessor queueProcessor,
+            ScheduledExecutorService retryExecutor) {
+        this.delegate = delegate;
+        this.retryExecutor = retryExecutor;
+        this.ownsRetryExecutor = false;
         this.queueProcessor = queueProcessor;
     }
 
@@ -51,6 +71,15 @@ public class RetryableForwarder implements Forwarder {
         this.historyHelper = historyHelper;
     }
 
+    /**
+     * Set the configuration JSON stored with queued messages, which also
+     * identifies the destination for the circuit breaker
+     */
+    public void setForwarderConfig(String forwarderConfig) {
+        this.forwarderConfig = forwarderConfig;
+        this.destination = ForwardingConfig.destinationOf(forwarderConfig);
+    }
+
     @Override
     public void forward(String fromNumber, String content) throws Exception {
         forward(fromNumber, content, System.currentTimeMillis());
@@ -71,9 +100,30 @@ public class RetryableForwarder implements Forwarder {
      * @param attempt    Current attempt number (1-based)
      */
     private void attemptForwardWithRetry(String fromNumber, String content, long timestamp, int attempt) {
+        String forwarderType = delegate.getClass().getSimpleName();
+        CircuitBreaker circuitBreaker = CircuitBreaker.getInstance();
+        String destination = this.destination;
+        if (!circuitBreaker.allowRequest(forwarderType, destination)) {
+            // The destination is down - don't spend retries on it, the queue tries again after the next probe
+            Log.i(TAG, String.format("Circuit open for %s, sending message from %s to the offline queue",
+                    forwarderType, fromNumber));
+            enqueue(fromNumber, content, timestamp,
+                    System.currentTimeMillis() + circuitBreaker.getTimeUntilRetry(forwarderType, destination));
+            return;
+        }
+
         try {
-            // Try to forward the message
-            delegate.forward(fromNumber, content, timestamp);
+            // Try to forward the message within the concurrency limit of its forwarder type
+            ConcurrencyLimiter.getInstance().call(forwarderType, () -> {
+                try {
+                    ForwarderMetrics.getInstance().forward(delegate, forwarderType, fromNumber, content, timestamp);
+                } catch (Exception e) {
+                    circuitBreaker.recordFailure(forwarderType, destination, e);
+                    throw e;
+                }
+                circuitBreaker.recordSuccess(forwarderType, destination);
+                return null;
+            });
 
             // Success - record in stats and history
             if (statsHelper != null) {
@@ -90,13 +140,28 @@ public class RetryableForwarder implements Forwarder {
                         attempt, fromNumber, delegate.getClass().getSimpleName()));
             }
 
+        } catch (ConcurrencyLimiter.LimitExceededException e) {
+            // Nothing was sent - let the queue try again shortly instead of holding this thread
+            Log.i(TAG, String.format("%s, sending message from %s to the offline queue", e.getMessage(), fromNumber));
+            enqueue(fromNumber, content, timestamp, System.currentTimeMillis() + ConcurrencyLimiter.RETRY_DELAY_MS);
         } catch (Exception e) {
             Log.w(TAG, String.format("Forward attempt %d failed for %s via %s: %s",
                     attempt, fromNumber, delegate.getClass().getSimpleName(), e.getMessage()));
 
-            if (attempt < MAX_RETRY_ATTEMPTS) {
-                // Schedule retry with exponential backoff
-                long delay = (long) (INITIAL_RETRY_DELAY_MS * Math.pow(BACKOFF_MULTIPLIER, attempt - 1));
+            if (HttpStatusException.isPermanent(e)) {
+                // The destination rejected the message itself - sending it again won't help
+                recordFailure(fromNumber, content, timestamp, e);
+                Log.e(TAG, String.format("Forward for %s via %s permanently rejected: %s",
+                        fromNumber, delegate.getClass().getSimpleName(), e.getMessage()));
+                return;
+            }
+
+            long retryAfterMs = HttpStatusException.getRetryAfterMs(e);
+            if (attempt < MAX_RETRY_ATTEMPTS && retryAfterMs <= MAX_IN_MEMORY_RETRY_AFTER_MS) {
+                // Schedule retry after the delay the server asked for, or with exponential backoff
+                long delay = retryAfterMs >= 0
+                        ? retryAfterMs
+                        : (long) (INITIAL_RETRY_DELAY_MS * Math.pow(BACKOFF_MULTIPLIER, attempt - 1));
 
                 Log.i(TAG, String.format("Scheduling retry %d/%d in %d ms for %s via %s",
                         attempt + 1, MAX_RETRY_ATTEMPTS, delay, fromNumber, delegate.getClass().getSimpleName()));
@@ -106,30 +171,43 @@ public class RetryableForwarder implements Forwarder {
                 }, delay, TimeUnit.MILLISECONDS);
 
             } else {
-                // All retry attempts exhausted - record failure in stats and history
-                if (statsHelper != null) {
-                    statsHelper.recordForwardFailure(delegate.getClass().getSimpleName());
-                }
+                // All retry attempts exhausted, or the server asked for a long pause - record failure
+                recordFailure(fromNumber, content, timestamp, e);
 
-                if (historyHelper != null) {
-                    historyHelper.recordForwardFailure(fromNumber, content,
-                            delegate.getClass().getSimpleName(), e.getMessage(), timestamp);
-                }
+                Log.e(TAG, String.format("Giving up after %d attempt(s) for %s via %s. Final error: %s",
+                        attempt, fromNumber, delegate.getClass().getSimpleName(), e.getMessage()));
 
-                Log.e(TAG, String.format("All %d retry attempts failed for %s via %s. Final error: %s",
-                        MAX_RETRY_ATTEMPTS, fromNumber, delegate.getClass().getSimpleName(), e.getMessage()));
-
-                if (queueProcessor != null) {
-                    try {
-                        String forwarderType = delegate.getClass().getSimpleName();
-                        String forwarderConfig = createForwarderConfig();
-                        queueProcessor.enqueueFailedMessage(fromNumber, content, timestamp,
-                                forwarderType, forwarderConfig);
-                        Log.i(TAG, "Added failed message to offline queue for later retry");
-                    } catch (Exception queueError) {
-                        Log.e(TAG, "Failed to add message to offline queue: " + queueError.getMessage());
-                    }
-                }
+                long now = System.currentTimeMillis();
+                enqueue(fromNumber, content, timestamp, retryAfterMs >= 0 ? now + retryAfterMs : now);
+            }
+        }
+    }
+
+    /**
+     * Record a failed forward in stats and history
+     */
+    private void recordFailure(String fromNumber, String content, long timestamp, Exception e) {
+        if (statsHelper != null) {
+            statsHelper.recordForwardFailure(delegate.getClass().getSimpleName());
+        }
+
+        if (historyHelper != null) {
+            historyHelper.recordForwardFailure(fromNumber, content,
+                    delegate.getClass().getSimpleName(), e.getMessage(), timestamp);
+        }
+    }
+
+    /**
+     * Add a message to the offline queue, to be retried no earlier than the given time
+     */
+    private void enqueue(String fromNumber, String content, long timestamp, long nextAttemptAt) {
+        if (queueProcessor != null) {
+            try {
+                queueProcessor.enqueueFailedMessage(fromNumber, content, timestamp,
+                        delegate.getClass().getSimpleName(), forwarderConfig, null, nextAttemptAt);
+                Log.i(TAG, "Added failed message to offline queue for later retry");
+            } catch (Exception queueError) {
+                Log.e(TAG, "Failed to add message to offline queue: " + queueError.getMessage());
             }
         }
     }
@@ -148,22 +226,13 @@ public class RetryableForwarder implements Forwarder {
         return delegate.getClass().getSimpleName();
     }
 
-    /**
-     * Create configuration JSON for the delegate forwarder
-     */
-    private String createForwarderConfig() {
-        // For now, return empty config - the MessageQueueProcessor will create proper
-        // config
-        // when processing from SmsReceiver context
-        return "{}";
-    }
-
     /**
      * Shutdown the retry executor service.
      * Call this when the application is being destroyed to clean up resources.
+     * Shared executors passed in by the caller are left running.
      */
     public void shutdown() {
-        if (retryExecutor != null && !retryExecutor.isShutdown()) {
+        if (ownsRetryExecutor && retryExecutor != null && !retryExecutor.isShutdown()) {
             retryExecutor.shutdown();
             try {
                 if (!retryExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
@@ -35,6 +35,7 @@ public class SettingsBackupManager {
     private static final String KEY_BACKUP_VERSION = "_backup_version";
     private static final String KEY_EXPORT_TIMESTAMP = "_export_timestamp";
     private static final String KEY_APP_VERSION = "_app_version";
+    private static final String KEY_METRICS = "_metrics"; // Latency metrics, informational only
 
     private final Context context;
     private final SharedPreferences preferences;
@@ -57,6 +58,7 @@ public class SettingsBackupManager {
         exportData.put(KEY_BACKUP_VERSION, BACKUP_VERSION);
         exportData.put(KEY_EXPORT_TIMESTAMP, System.currentTimeMillis());
         exportData.put(KEY_APP_VERSION, BuildConfig.VERSION_NAME);
+        exportData.put(KEY_METRICS, ForwarderMetrics.getInstance().snapshot().toJson());
 
         // Export all preferences
         Map<String, ?> allPrefs = preferences.getAll();
@@ -81,7 +83,7 @@ public class SettingsBackupManager {
             }
         }
 
-        Log.i(TAG, "Exported " + (exportData.length() - 3) + " settings"); // -3 for metadata
+        Log.i(TAG, "Exported " + (exportData.length() - 4) + " settings"); // -4 for metadata
         return exportData.toString(2); // Pretty print with 2 space indentation
     }
 
@@ -245,24 +247,8 @@ public class SettingsBackupManager {
      */
     private boolean isExportableKey(String key) {
         // Include all user-configurable preferences
-        return key.equals(context.getString(R.string.key_enable_sms)) ||
-                key.equals(context.getString(R.string.key_target_sms)) ||
-                key.equals(context.getString(R.string.key_enable_telegram)) ||
-                key.equals(context.getString(R.string.key_target_telegram)) ||
-                key.equals(context.getString(R.string.key_telegram_apikey)) ||
-                key.equals(context.getString(R.string.key_enable_web)) ||
-                key.equals(context.getString(R.string.key_target_web)) ||
-                key.equals(context.getString(R.string.key_enable_email)) ||
-                key.equals(context.getString(R.string.key_email_from_address)) ||
-                key.equals(context.getString(R.string.key_email_to_address)) ||
-                key.equals(context.getString(R.string.key_email_submit_host)) ||
-                key.equals(context.getString(R.string.key_email_submit_port)) ||
-                key.equals(context.getString(R.string.key_email_submit_password)) ||
-                key.equals(context.getString(R.string.key_email_username_style)) ||
-                key.equals(context.getString(R.string.key_enable_rate_limiting)) ||
-                key.equals(context.getString(R.string.key_filter_keywords)) ||
-                key.equals(context.getString(R.string.key_enable_number_whitelist)) ||
-                key.equals(context.getString(R.string.key_number_whitelist)) ||
+        return ForwardingConfig.isPreferenceKey(context, key) ||
+                key.equals(context.getString(R.string.key_history_capacity)) ||
                 key.equals(context.getString(R.string.key_language)) ||
                 key.equals(context.getString(R.string.key_theme_mode));
     }
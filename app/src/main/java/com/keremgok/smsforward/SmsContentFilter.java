@@ -2,52 +2,60 @@ package com.keremgok.smsforward;
 
 import android.util.Log;
 
+import java.util.Arrays;
+
 /**
  * Content filtering system for SMS messages.
  * Provides functionality to block messages containing specific keywords.
+ * Keywords are compiled into a {@link KeywordMatcher} once per preference change.
  */
 public class SmsContentFilter {
     private static final String TAG = "SmsContentFilter";
 
     /**
      * Check if a message should be blocked based on configured keywords.
+     * Compiles the keywords on every call; use {@link #compile} and
+     * {@link #findBlockingKeyword} when the keywords are reused.
      * 
      * @param messageContent The SMS message content to check
      * @param filterKeywords Comma-separated list of keywords to filter
      * @return true if the message should be blocked, false otherwise
      */
     public static boolean shouldBlockMessage(String messageContent, String filterKeywords) {
-        // If no filter keywords are configured, allow all messages
+        return findBlockingKeyword(messageContent, compile(filterKeywords)) != null;
+    }
+
+    /**
+     * Compile the comma-separated keyword preference into a matcher.
+     * 
+     * @param filterKeywords Comma-separated list of keywords to filter
+     * @return Matcher for all non-empty keywords
+     */
+    public static KeywordMatcher compile(String filterKeywords) {
         if (filterKeywords == null || filterKeywords.trim().isEmpty()) {
-            return false;
+            return KeywordMatcher.EMPTY;
         }
+        return KeywordMatcher.compile(Arrays.asList(filterKeywords.split(",")));
+    }
 
-        // If message content is null or empty, don't block it
-        if (messageContent == null || messageContent.trim().isEmpty()) {
-            return false;
+    /**
+     * Find the keyword that blocks a message, matching all keywords in a single pass.
+     * 
+     * @param messageContent The SMS message content to check
+     * @param keywords       Compiled filter keywords
+     * @return The first keyword found in the message, or null if the message is allowed
+     */
+    public static String findBlockingKeyword(String messageContent, KeywordMatcher keywords) {
+        // If no filter keywords are configured, allow all messages
+        if (keywords == null || keywords.isEmpty()) {
+            return null;
         }
 
-        // Split keywords by comma and check each one
-        String[] keywords = filterKeywords.split(",");
-        String contentLowerCase = messageContent.toLowerCase().trim();
-
-        for (String keyword : keywords) {
-            String trimmedKeyword = keyword.trim().toLowerCase();
-            
-            // Skip empty keywords
-            if (trimmedKeyword.isEmpty()) {
-                continue;
-            }
-
-            // Check if the message contains this keyword
-            if (contentLowerCase.contains(trimmedKeyword)) {
-                Log.i(TAG, String.format("Message blocked by keyword filter: '%s' found in message", trimmedKeyword));
-                return true; // Block the message
-            }
+        String keyword = keywords.findMatch(messageContent);
+        if (keyword != null) {
+            Log.i(TAG, String.format("Message blocked by keyword filter: '%s' found in message", keyword));
         }
-
-        // No matching keywords found, allow the message
-        return false;
+        return keyword;
     }
 
     /**
@@ -28,7 +28,16 @@ public class SmsForwardApplication extends Application {
         super.onCreate();
 
         // Language is now initialized in attachBaseContext.
-        // The rest of the app initialization can go here.
+        // Start the shared forwarding engine (offline queue processing, executors)
+        ForwardingEngine.getInstance(this).start();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // The process may be killed soon - write forward counts kept in memory
+        ForwardingEngine engine = ForwardingEngine.getInstance(this);
+        engine.runInBackground(() -> engine.getStatsDbHelper().flushPendingStats());
     }
 
     @Override
@@ -36,8 +45,16 @@ public class SmsForwardApplication extends Application {
         super.onTerminate();
 
         // Cleanup global resources to prevent memory leaks
-        // Note: onTerminate() is not guaranteed to be called on all devices,
-        // but it's good practice to include cleanup code here
+        // Note: onTerminate() is only called on emulators - nothing may depend on it.
+        // Pending batches already have offline queue backups and stats are written
+        // in onTrimMemory, so this only releases resources without blocking
+
+        // Stop the shared forwarding engine
+        try {
+            ForwardingEngine.getInstance(this).shutdown();
+        } catch (Exception e) {
+            // Ignore errors during cleanup
+        }
 
         // Stop network monitoring if it's still active
         try {
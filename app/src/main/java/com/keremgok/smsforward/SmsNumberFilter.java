@@ -1,6 +1,5 @@
 package com.keremgok.smsforward;
 
-import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
@@ -8,6 +7,7 @@ import java.util.List;
 
 /**
  * Utility class to handle SMS filtering based on a sender number whitelist.
+ * The whitelist is indexed once per preference change by {@link PhoneNumberIndex}.
  */
 public class SmsNumberFilter {
     private static final String TAG = "SmsNumberFilter";
@@ -15,27 +15,36 @@ public class SmsNumberFilter {
     /**
      * Checks if a message from a given number should be blocked based on a whitelist.
      * If the whitelist is enabled but empty, it will block all numbers.
+     * Indexes the whitelist on every call; use {@link #compile} when it is reused.
      *
      * @param fromNumber      The sender's phone number.
      * @param numberWhitelist A comma-separated string of whitelisted numbers.
      * @return true if the number is NOT in the whitelist, otherwise false.
      */
     public static boolean shouldBlockNumber(String fromNumber, String numberWhitelist) {
-        if (numberWhitelist == null || numberWhitelist.trim().isEmpty()) {
-            // If the whitelist is empty, we block all messages.
-            return true;
-        }
+        return shouldBlockNumber(fromNumber, compile(numberWhitelist));
+    }
 
-        String[] whitelist = numberWhitelist.split(",");
-        for (String whitelistedNumber : whitelist) {
-            if (!TextUtils.isEmpty(whitelistedNumber) && PhoneNumberUtils.compare(fromNumber, whitelistedNumber.trim())) {
-                // The number is in the whitelist, do not block.
-                return false;
-            }
-        }
+    /**
+     * Checks if a message from a given number should be blocked by a compiled whitelist.
+     *
+     * @param fromNumber The sender's phone number.
+     * @param whitelist  The whitelist compiled with {@link #compile}.
+     * @return true if the number is blocked or NOT in the whitelist, otherwise false.
+     */
+    public static boolean shouldBlockNumber(String fromNumber, PhoneNumberIndex whitelist) {
+        return whitelist.isBlocked(fromNumber);
+    }
 
-        // The number was not found in the whitelist, so it should be blocked.
-        return true;
+    /**
+     * Normalizes and indexes a comma-separated whitelist, including "!" block
+     * entries and "*" prefix entries.
+     *
+     * @param numberWhitelist The whitelist string from the settings preference.
+     * @return The index used for lookups.
+     */
+    public static PhoneNumberIndex compile(String numberWhitelist) {
+        return PhoneNumberIndex.compile(numberWhitelist);
     }
 
     /**
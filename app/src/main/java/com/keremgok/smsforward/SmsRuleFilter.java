@@ -0,0 +1,435 @@
+package com.keremgok.smsforward;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include/exclude filter rules on the message content and sender, one rule per line:
+ * <pre>
+ * # Comment
+ * exclude content: (?:won|winner).*prize
+ * include from: ^\+90555
+ * </pre>
+ * A message is blocked if any exclude rule matches, or if there are include
+ * rules and none of them matches. Matching is case-insensitive. Patterns
+ * without regex syntax are matched as plain text.
+ * <p>
+ * Rules are compiled once per rule text and evaluated cheapest first: plain
+ * text before regular expressions, shorter before longer. Plain text rules
+ * run inline without allocating. Regular expressions run on a small pool with
+ * reused matchers and are given at most {@link #MATCH_TIMEOUT_MS} per message.
+ * The text is matched through a {@link CharSequence} that aborts the match
+ * once the deadline passes or the thread is interrupted. The platform regex
+ * engine may copy the text before matching and cannot always be stopped, so
+ * a rule that runs out of time is also disabled; a pathological pattern then
+ * holds at most one pool thread instead of exhausting the pool.
+ */
+public final class SmsRuleFilter {
+    private static final String TAG = "SmsRuleFilter";
+    private static final long MATCH_TIMEOUT_MS = 100;
+    private static final int MAX_REGEX_THREADS = 4; // Threads stuck in runaway matches, after which rules fail open
+    private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+    private static final String NO_INCLUDE_MATCH = "no include rule matched";
+
+    private static final ThreadPoolExecutor REGEX_EXECUTOR = new ThreadPoolExecutor(0, MAX_REGEX_THREADS,
+            30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    public static final SmsRuleFilter EMPTY = new SmsRuleFilter("", new ArrayList<>());
+
+    // The last compiled rules, reused while the rule text is unchanged
+    private static volatile SmsRuleFilter cached = EMPTY;
+
+    private final String source;
+    private final Rule[] excludeRules;
+    private final Rule[] includeRules;
+    // Rules are sorted plain text first, so regular expressions start at these indexes
+    private final int firstRegexExclude;
+    private final int firstRegexInclude;
+    private final int regexCount;
+    private final ThreadLocal<Matcher[]> matchers = new ThreadLocal<Matcher[]>() {
+        @Override
+        protected Matcher[] initialValue() {
+            return new Matcher[regexCount];
+        }
+    };
+
+    private SmsRuleFilter(String source, List<Rule> rules) {
+        this.source = source;
+        List<Rule> excludes = new ArrayList<>();
+        List<Rule> includes = new ArrayList<>();
+        int regexIndex = 0;
+        for (Rule rule : rules) {
+            if (rule.pattern != null) {
+                rule.matcherIndex = regexIndex++;
+            }
+            (rule.include ? includes : excludes).add(rule);
+        }
+        Comparator<Rule> byCost = (a, b) -> Integer.compare(a.cost, b.cost);
+        Collections.sort(excludes, byCost);
+        Collections.sort(includes, byCost);
+        this.excludeRules = excludes.toArray(new Rule[0]);
+        this.includeRules = includes.toArray(new Rule[0]);
+        this.firstRegexExclude = firstRegex(excludeRules);
+        this.firstRegexInclude = firstRegex(includeRules);
+        this.regexCount = regexIndex;
+    }
+
+    private static int firstRegex(Rule[] rules) {
+        int i = 0;
+        while (i < rules.length && rules[i].pattern == null) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Compile the rule preference. Invalid lines are skipped with a warning.
+     *
+     * @param rulesText Rules, one per line
+     */
+    public static SmsRuleFilter compile(String rulesText) {
+        if (rulesText == null || rulesText.trim().isEmpty()) {
+            return EMPTY;
+        }
+        SmsRuleFilter current = cached;
+        if (current.source.equals(rulesText)) {
+            return current;
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        for (String line : rulesText.split("\n")) {
+            try {
+                Rule rule = parseRule(line);
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Skipping invalid filter rule '" + line.trim() + "': " + e.getMessage());
+            }
+        }
+        SmsRuleFilter compiled = new SmsRuleFilter(rulesText, rules);
+        cached = compiled;
+        Log.d(TAG, "Compiled " + rules.size() + " filter rules");
+        return compiled;
+    }
+
+    /**
+     * Check the rule text for lines that cannot be parsed
+     *
+     * @return Error message for the first invalid line, or null if all lines are valid
+     */
+    public static String validate(String rulesText) {
+        if (rulesText == null) {
+            return null;
+        }
+        for (String line : rulesText.split("\n")) {
+            try {
+                parseRule(line);
+            } catch (IllegalArgumentException e) {
+                return line.trim() + ": " + e.getMessage();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count the rules in the rule text, ignoring blank and comment lines
+     */
+    public static int getRuleCount(String rulesText) {
+        if (rulesText == null) {
+            return 0;
+        }
+        int count = 0;
+        for (String line : rulesText.split("\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Parse one line: {@code include|exclude content|from: pattern}
+     *
+     * @return The rule, or null for blank and comment lines
+     * @throws IllegalArgumentException if the line is not a valid rule
+     */
+    private static Rule parseRule(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        int colon = trimmed.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("expected 'include|exclude content|from: pattern'");
+        }
+        String[] head = trimmed.substring(0, colon).trim().toLowerCase(Locale.ROOT).split("\\s+");
+        String pattern = trimmed.substring(colon + 1).trim();
+        if (head.length != 2 || pattern.isEmpty()) {
+            throw new IllegalArgumentException("expected 'include|exclude content|from: pattern'");
+        }
+
+        boolean include;
+        if ("include".equals(head[0])) {
+            include = true;
+        } else if ("exclude".equals(head[0])) {
+            include = false;
+        } else {
+            throw new IllegalArgumentException("unknown action '" + head[0] + "'");
+        }
+        boolean matchSender;
+        if ("from".equals(head[1])) {
+            matchSender = true;
+        } else if ("content".equals(head[1])) {
+            matchSender = false;
+        } else {
+            throw new IllegalArgumentException("unknown field '" + head[1] + "'");
+        }
+
+        if (isLiteral(pattern)) {
+            return new Rule(trimmed, include, matchSender, pattern, null);
+        }
+        try {
+            return new Rule(trimmed, include, matchSender, pattern,
+                    Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException(e.getDescription());
+        }
+    }
+
+    private static boolean isLiteral(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (REGEX_META_CHARS.indexOf(pattern.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether there are no rules
+     */
+    public boolean isEmpty() {
+        return excludeRules.length == 0 && includeRules.length == 0;
+    }
+
+    /**
+     * Find the rule that blocks a message
+     *
+     * @return Description of the blocking rule, or null if the message is allowed
+     */
+    public String findBlockingRule(String fromNumber, String messageContent) {
+        if (isEmpty()) {
+            return null;
+        }
+        final String from = fromNumber != null ? fromNumber : "";
+        final String content = messageContent != null ? messageContent : "";
+
+        // Plain text rules first
+        for (int i = 0; i < firstRegexExclude; i++) {
+            if (excludeRules[i].matchesLiteral(from, content)) {
+                return blocked(excludeRules[i].source);
+            }
+        }
+        boolean includeMatched = includeRules.length == 0;
+        for (int i = 0; i < firstRegexInclude && !includeMatched; i++) {
+            includeMatched = includeRules[i].matchesLiteral(from, content);
+        }
+        boolean needsRegex = firstRegexExclude < excludeRules.length ||
+                (!includeMatched && firstRegexInclude < includeRules.length);
+        if (!needsRegex) {
+            return includeMatched ? null : blocked(NO_INCLUDE_MATCH);
+        }
+
+        final boolean skipIncludes = includeMatched;
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MATCH_TIMEOUT_MS);
+        final AtomicReference<Rule> running = new AtomicReference<>();
+        Future<String> result;
+        try {
+            result = REGEX_EXECUTOR.submit(() -> matchRegexRules(from, content, skipIncludes, deadline, running));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "All filter rule threads are busy with slow matches, message allowed");
+            return null;
+        }
+        try {
+            String blockingRule = result.get(MATCH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return blockingRule != null ? blocked(blockingRule) : null;
+        } catch (TimeoutException e) {
+            // Fail open: forwarding an unwanted message is better than dropping a wanted one
+            result.cancel(true);
+            disable(running.get());
+            Log.w(TAG, "Filter rules took longer than " + MATCH_TIMEOUT_MS + " ms, message allowed");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error evaluating filter rules, message allowed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate the regular expression rules on a pool thread
+     *
+     * @param deadline System.nanoTime() after which a running match is aborted
+     * @param running  Receives the rule being matched, so a timed out rule can be disabled
+     * @return The blocking rule, or null if the message is allowed
+     */
+    private String matchRegexRules(String from, String content, boolean includeMatched, long deadline,
+            AtomicReference<Rule> running) {
+        Matcher[] threadMatchers = matchers.get();
+        CharSequence fromText = new DeadlineCharSequence(from, deadline);
+        CharSequence contentText = new DeadlineCharSequence(content, deadline);
+        try {
+            for (int i = firstRegexExclude; i < excludeRules.length; i++) {
+                Rule rule = excludeRules[i];
+                running.set(rule);
+                if (!rule.disabled && rule.matchesRegex(fromText, contentText, threadMatchers)) {
+                    return rule.source;
+                }
+            }
+            for (int i = firstRegexInclude; i < includeRules.length && !includeMatched; i++) {
+                Rule rule = includeRules[i];
+                running.set(rule);
+                // A disabled include rule counts as matching, so it cannot block messages
+                includeMatched = rule.disabled || rule.matchesRegex(fromText, contentText, threadMatchers);
+            }
+        } catch (MatchTimeoutException e) {
+            disable(running.get());
+            return null; // Fail open, the caller has stopped waiting
+        }
+        return includeMatched ? null : NO_INCLUDE_MATCH;
+    }
+
+    private static void disable(Rule rule) {
+        if (rule != null && !rule.disabled) {
+            rule.disabled = true;
+            Log.w(TAG, "Disabled filter rule that takes too long to match: " + rule.source);
+        }
+    }
+
+    private static String blocked(String rule) {
+        Log.i(TAG, "Message blocked by filter rule: " + rule);
+        return rule;
+    }
+
+    /**
+     * A single compiled rule
+     */
+    private static final class Rule {
+        final String source;
+        final boolean include;
+        final boolean matchSender;
+        final String literal; // Used when pattern is null
+        final Pattern pattern;
+        final int cost; // Rough evaluation cost, cheapest rules run first
+        int matcherIndex = -1;
+        volatile boolean disabled; // Set when the rule ran out of time; skipped until the rules change
+
+        Rule(String source, boolean include, boolean matchSender, String literal, Pattern pattern) {
+            this.source = source;
+            this.include = include;
+            this.matchSender = matchSender;
+            this.literal = literal;
+            this.pattern = pattern;
+            // Sender numbers are short; regular expressions cost more than plain text
+            this.cost = (pattern != null ? 1000 : 0) + (matchSender ? 0 : 100) + literal.length();
+        }
+
+        boolean matchesLiteral(String from, String content) {
+            return containsIgnoreCase(matchSender ? from : content, literal);
+        }
+
+        boolean matchesRegex(CharSequence from, CharSequence content, Matcher[] matchers) {
+            CharSequence text = matchSender ? from : content;
+            Matcher matcher = matchers[matcherIndex];
+            if (matcher == null) {
+                matcher = pattern.matcher(text);
+                matchers[matcherIndex] = matcher;
+            } else {
+                matcher.reset(text);
+            }
+            return matcher.find();
+        }
+
+        private static boolean containsIgnoreCase(String text, String literal) {
+            int last = text.length() - literal.length();
+            for (int i = 0; i <= last; i++) {
+                if (text.regionMatches(true, i, literal, 0, literal.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Thrown from {@link DeadlineCharSequence} to abort a match that ran out of time
+     */
+    private static final class MatchTimeoutException extends RuntimeException {
+        MatchTimeoutException() {
+            super("Filter rule match timed out", null, false, false);
+        }
+    }
+
+    /**
+     * Text that aborts a regex match reading it once the deadline has passed
+     * or the matching thread has been interrupted
+     */
+    private static final class DeadlineCharSequence implements CharSequence {
+        private static final int CHECK_INTERVAL_MASK = 0xFF; // Check the clock every 256 reads
+
+        private final CharSequence text;
+        private final long deadline;
+        private int reads;
+
+        DeadlineCharSequence(CharSequence text, long deadline) {
+            this.text = text;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++reads & CHECK_INTERVAL_MASK) == 0
+                    && (Thread.currentThread().isInterrupted() || System.nanoTime() > deadline)) {
+                throw new MatchTimeoutException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(text.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
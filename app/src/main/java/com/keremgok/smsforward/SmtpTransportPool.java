@@ -0,0 +1,182 @@
+package com.keremgok.smsforward;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Keeps one authenticated SMTP {@link Transport} per configured server open
+ * between messages, so consecutive emails skip the connect, TLS and AUTH
+ * round trips. Idle connections are closed and dropped from the pool after
+ * {@link #IDLE_TIMEOUT_MS}, which also clears servers that are no longer
+ * configured. A pooled connection is checked before each send and reopened
+ * if the server dropped it; a failed send itself is never repeated, since
+ * the server may already have accepted the message.
+ */
+public final class SmtpTransportPool {
+    private static final String TAG = "SmtpTransportPool";
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000; // Most servers drop idle clients after a few minutes
+    private static final long EVICTION_INTERVAL_MS = 30 * 1000;
+
+    private static volatile SmtpTransportPool instance;
+
+    private final Map<String, PooledTransport> transports = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    private SmtpTransportPool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the process-wide SMTP transport pool
+     */
+    public static SmtpTransportPool getInstance() {
+        if (instance == null) {
+            synchronized (SmtpTransportPool.class) {
+                if (instance == null) {
+                    instance = new SmtpTransportPool();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Send a message over the pooled connection for the given server
+     *
+     * @param key     Identifies the server and credentials the session was built for
+     * @param session Session used to open the connection if none is pooled
+     * @param message Message to send
+     */
+    public void send(String key, Session session, MimeMessage message) throws MessagingException {
+        PooledTransport pooled = transports.computeIfAbsent(key, k -> new PooledTransport(session));
+        while (!pooled.send(message)) {
+            // Evicted between lookup and send - use a fresh entry
+            transports.remove(key, pooled);
+            pooled = transports.computeIfAbsent(key, k -> new PooledTransport(session));
+        }
+    }
+
+    /**
+     * Close every pooled connection
+     */
+    public void closeAll() {
+        for (PooledTransport pooled : transports.values()) {
+            pooled.retire();
+        }
+        transports.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, PooledTransport> entry : transports.entrySet()) {
+            if (entry.getValue().retireIfIdle(now)) {
+                transports.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A single SMTP connection. SMTP is a sequential protocol, so sends on
+     * the same connection are serialized.
+     */
+    private static final class PooledTransport {
+        private final Session session;
+        private Transport transport;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean retired; // Removed from the pool, must not open a connection again
+
+        PooledTransport(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * @return false if this entry was retired and the message was not sent
+         */
+        synchronized boolean send(MimeMessage message) throws MessagingException {
+            if (retired) {
+                return false;
+            }
+            message.saveChanges();
+            Address[] recipients = message.getAllRecipients();
+            try {
+                ensureConnected().sendMessage(message, recipients);
+            } catch (SendFailedException e) {
+                // Rejected recipients or content - the connection itself is fine
+                throw e;
+            } catch (MessagingException | IllegalStateException e) {
+                // The server may have taken the message already - report it, don't send it twice
+                close();
+                throw e;
+            } finally {
+                lastUsed = System.currentTimeMillis();
+            }
+            return true;
+        }
+
+        private Transport ensureConnected() throws MessagingException {
+            // isConnected() sends a NOOP, so a connection the server dropped while idle is found before sending
+            if (transport != null && !transport.isConnected()) {
+                Log.d(TAG, "Pooled SMTP connection to " + session.getProperty("mail.smtp.host")
+                        + " was closed by the server, reconnecting");
+                close();
+            }
+            if (transport == null) {
+                Transport newTransport = session.getTransport("smtp");
+                newTransport.connect();
+                transport = newTransport;
+                Log.d(TAG, "Opened SMTP connection to " + session.getProperty("mail.smtp.host"));
+            }
+            return transport;
+        }
+
+        /**
+         * Retire this entry if it has not been used for {@link #IDLE_TIMEOUT_MS}
+         *
+         * @return true if the entry was retired and should leave the pool
+         */
+        synchronized boolean retireIfIdle(long now) {
+            if (now - lastUsed <= IDLE_TIMEOUT_MS) {
+                return false;
+            }
+            if (transport != null) {
+                Log.d(TAG, "Closing idle SMTP connection to " + session.getProperty("mail.smtp.host"));
+            }
+            retire();
+            return true;
+        }
+
+        synchronized void retire() {
+            retired = true;
+            close();
+        }
+
+        private synchronized void close() {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (MessagingException e) {
+                    // Ignore errors while closing a connection we are discarding
+                }
+                transport = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.keremgok.smsforward;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide in-memory forwarding counters.
+ * Recording an event only increments a {@link LongAdder}; the counts are
+ * written to the stats database later by {@link MessageStatsDbHelper} in a
+ * single transaction, so delivery threads never wait for SQLite.
+ */
+public final class StatsAggregator {
+    private static final String TAG = "StatsAggregator";
+
+    private static volatile StatsAggregator instance;
+
+    /**
+     * Writes drained counts to persistent storage
+     */
+    public interface Sink {
+        /**
+         * Persist all deltas at once. Throwing keeps the deltas for the next drain.
+         */
+        void write(List<Delta> deltas);
+    }
+
+    /**
+     * Unflushed count for one day, forwarder type and outcome
+     */
+    public static final class Delta {
+        public final String date;
+        public final String forwarderType;
+        public final boolean success;
+        public final long count;
+
+        Delta(Key key, long count) {
+            this.date = key.date;
+            this.forwarderType = key.forwarderType;
+            this.success = key.success;
+            this.count = count;
+        }
+    }
+
+    private final Map<Key, Counter> counters = new ConcurrentHashMap<>();
+    private final Object drainLock = new Object();
+
+    private StatsAggregator() {
+    }
+
+    /**
+     * Get the process-wide aggregator
+     */
+    public static StatsAggregator getInstance() {
+        if (instance == null) {
+            synchronized (StatsAggregator.class) {
+                if (instance == null) {
+                    instance = new StatsAggregator();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Count one forward. Lock-free apart from the first event of a new key.
+     */
+    public void record(String date, String forwarderType, boolean success) {
+        Key key = new Key(date, forwarderType, success);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new Counter());
+        }
+        counter.recorded.increment();
+    }
+
+    /**
+     * Hand everything recorded since the last drain to the sink.
+     * Counters are never reset, only the flushed amount advances, so events
+     * recorded while draining are not lost - they go out with the next drain.
+     *
+     * @return Number of events written
+     */
+    public long drainTo(Sink sink) {
+        synchronized (drainLock) {
+            List<Delta> deltas = new ArrayList<>();
+            List<Counter> drained = new ArrayList<>();
+            List<Long> sums = new ArrayList<>();
+            String latestDate = "";
+            for (Map.Entry<Key, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                long sum = counter.recorded.sum();
+                if (sum > counter.flushed) {
+                    deltas.add(new Delta(entry.getKey(), sum - counter.flushed));
+                    drained.add(counter);
+                    sums.add(sum);
+                    counter.idle = false;
+                }
+                if (entry.getKey().date.compareTo(latestDate) > 0) {
+                    latestDate = entry.getKey().date;
+                }
+            }
+            removeStaleDays(latestDate);
+            if (deltas.isEmpty()) {
+                return 0;
+            }
+
+            sink.write(deltas);
+
+            long total = 0;
+            for (int i = 0; i < drained.size(); i++) {
+                drained.get(i).flushed = sums.get(i);
+                total += deltas.get(i).count;
+            }
+            Log.d(TAG, "Flushed " + total + " forward event(s) in " + deltas.size() + " counter(s)");
+            return total;
+        }
+    }
+
+    /**
+     * Drop counters of earlier days once they stayed fully flushed for a
+     * whole drain interval, so the map does not grow day after day. Waiting
+     * one interval leaves time for a recorder that already looked up the
+     * counter to finish its increment.
+     */
+    private void removeStaleDays(String latestDate) {
+        Iterator<Map.Entry<Key, Counter>> iterator = counters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Counter> entry = iterator.next();
+            Counter counter = entry.getValue();
+            if (entry.getKey().date.compareTo(latestDate) >= 0 || counter.recorded.sum() != counter.flushed) {
+                continue;
+            }
+            if (counter.idle) {
+                iterator.remove();
+            } else {
+                counter.idle = true;
+            }
+        }
+    }
+
+    private static final class Counter {
+        final LongAdder recorded = new LongAdder();
+        long flushed; // Guarded by drainLock
+        boolean idle; // Fully flushed at the previous drain, guarded by drainLock
+    }
+
+    private static final class Key {
+        final String date;
+        final String forwarderType;
+        final boolean success;
+
+        Key(String date, String forwarderType, boolean success) {
+            this.date = date;
+            this.forwarderType = forwarderType;
+            this.success = success;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return success == other.success && date.equals(other.date)
+                    && forwarderType.equals(other.forwarderType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(date, forwarderType, success);
+        }
+    }
+}
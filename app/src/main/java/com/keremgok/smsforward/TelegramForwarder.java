@@ -40,10 +40,6 @@ public final class TelegramForwarder extends AbstractWebForwarder {
     }
 
     @Override
-    protected byte[] makeBody(String fromNumber, String content) {
-        return makeBody(fromNumber, content, System.currentTimeMillis());
-    }
-
     protected byte[] makeBody(String fromNumber, String content, long timestamp) {
         JSONObject body = new JSONObject();
         try {
@@ -69,32 +65,29 @@ public final class TelegramForwarder extends AbstractWebForwarder {
     }
 
     @Override
-    public void forward(String fromNumber, String content, long timestamp) throws Exception {
-        // Override the parent method to use timestamp-aware body creation
-        byte[] body = makeBody(fromNumber, content, timestamp);
-
-        java.net.HttpURLConnection connection = (java.net.HttpURLConnection) endpoint.openConnection();
-        try {
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.setDoOutput(true);
-            connection.setDoInput(false);
-            connection.setRequestProperty("Content-Type", getContentType());
-
-            try (java.io.OutputStream out = connection.getOutputStream()) {
-                out.write(body);
-                out.flush();
-            }
-
-            int status = connection.getResponseCode();
-            Log.d(TAG, String.format("response: status=%d", status));
-        } finally {
-            connection.disconnect();
-        }
+    protected String getContentType() {
+        return "application/json";
     }
 
+    /**
+     * Telegram puts the delay in the body as {@code parameters.retry_after} (seconds),
+     * and only sometimes in the Retry-After header
+     */
     @Override
-    protected String getContentType() {
-        return "application/json";
+    protected long getRetryAfterMs(HttpTransport.Response response) {
+        if (response.body != null) {
+            try {
+                JSONObject parameters = new JSONObject(response.body).optJSONObject("parameters");
+                if (parameters != null && parameters.has("retry_after")) {
+                    long seconds = parameters.optLong("retry_after", -1);
+                    if (seconds >= 0) {
+                        return seconds * 1000;
+                    }
+                }
+            } catch (JSONException e) {
+                // Not a Bot API error body
+            }
+        }
+        return super.getRetryAfterMs(response);
     }
 }
\ No newline at end of file
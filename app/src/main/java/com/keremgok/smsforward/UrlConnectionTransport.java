@@ -0,0 +1,125 @@
+package com.keremgok.smsforward;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HttpTransport} backed by {@link HttpURLConnection}.
+ * The platform implementation keeps a keep-alive connection pool as long as
+ * the response is read to the end and {@code disconnect()} is not called, so
+ * this transport always drains the response and never disconnects.
+ * Per-host concurrency is capped here; pool size and idle eviction are left
+ * to the platform defaults, which already keep connections alive.
+ */
+public final class UrlConnectionTransport implements HttpTransport {
+    private static final String TAG = "UrlConnectionTransport";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int MAX_RESPONSE_BODY_BYTES = 64 * 1024;
+    // A response is drained for reuse only up to these limits, so a huge or endless body can't hold a permit
+    private static final int MAX_DRAIN_BYTES = 1024 * 1024;
+    private static final long MAX_DRAIN_MS = 10000;
+
+    private static volatile UrlConnectionTransport instance;
+
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    private UrlConnectionTransport() {
+    }
+
+    /**
+     * Get the transport shared by all web forwarders
+     */
+    public static UrlConnectionTransport getInstance() {
+        if (instance == null) {
+            synchronized (UrlConnectionTransport.class) {
+                if (instance == null) {
+                    instance = new UrlConnectionTransport();
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Override
+    public Response post(URL url, String contentType, byte[] body) throws IOException {
+        Semaphore permits = hostPermits.computeIfAbsent(url.getHost(),
+                host -> new Semaphore(MAX_CONNECTIONS_PER_HOST, true));
+        try {
+            if (!permits.tryAcquire(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many concurrent requests to " + url.getHost());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + url.getHost(), e);
+        }
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", contentType);
+
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+                out.flush();
+            }
+
+            int status = connection.getResponseCode();
+            String retryAfter = connection.getHeaderField("Retry-After");
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            String responseBody = readFully(in);
+            Log.d(TAG, String.format("response: host=%s status=%d", url.getHost(), status));
+            return new Response(status, retryAfter, responseBody);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Read the response to the end so the connection can go back to the pool.
+     * Only the first {@link #MAX_RESPONSE_BODY_BYTES} bytes are kept. Reading stops
+     * after {@link #MAX_DRAIN_BYTES} bytes or {@link #MAX_DRAIN_MS}; the connection
+     * is then closed instead of reused.
+     */
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        long deadline = SystemClock.elapsedRealtime() + MAX_DRAIN_MS;
+        long drained = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                drained += read;
+                if (drained > MAX_DRAIN_BYTES || SystemClock.elapsedRealtime() > deadline) {
+                    Log.w(TAG, "Response body too large or too slow, not draining the rest");
+                    break;
+                }
+                int room = MAX_RESPONSE_BODY_BYTES - kept.size();
+                if (room > 0) {
+                    kept.write(buffer, 0, Math.min(read, room));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return new String(kept.toByteArray(), StandardCharsets.UTF_8);
+    }
+}